@@ -16,14 +16,22 @@
 
 package com.base.cache;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
-public class AsyncCache implements IMultiTierCache,IAsyncCache {
+public class AsyncCache implements IMultiTierCache,IAsyncCache,INonBlockingCache,ISupportLeases,ISupportKeyScan {
 	private final static int DEFAULT_TTL = 120;
 	private ThreadPoolExecutor exec;
 	private int ttl = DEFAULT_TTL;
@@ -31,7 +39,10 @@ public class AsyncCache implements IMultiTierCache,IAsyncCache {
 	private int minThreads = 5;
 	private ICache primaryCache;
 	private ICache secondaryCache;
+	private INonBlockingCache primaryAsync;
+	private INonBlockingCache secondaryAsync;
 	private boolean async;
+	private volatile CircuitBreaker primaryBreaker = new CircuitBreaker();
 
 	public AsyncCache(final ICache primaryCache,final ICache secondaryCache) {
 		this(primaryCache,secondaryCache,true,DEFAULT_TTL);
@@ -44,6 +55,8 @@ public class AsyncCache implements IMultiTierCache,IAsyncCache {
 	public AsyncCache(final ICache primaryCache,final ICache secondaryCache,final boolean async,final int ttl) {
 		this.primaryCache = primaryCache;
 		this.secondaryCache = secondaryCache;
+		this.primaryAsync = BlockingCacheAdapter.adapt(primaryCache);
+		this.secondaryAsync = BlockingCacheAdapter.adapt(secondaryCache);
 		exec = new ThreadPoolExecutor(getMinPoolThreads(), getMaxPoolThreads(), 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
 		exec.setThreadFactory(new ThreadFactory() {
 			public Thread newThread(final Runnable r) {
@@ -65,42 +78,245 @@ public class AsyncCache implements IMultiTierCache,IAsyncCache {
 		if (ret != null) {
 			return ret;
 		} else {
-			ret = primaryCache.get(key);
+			ret = callPrimary(new PrimaryCall<Object>() {
+				protected Object call(final ICache primary) {
+					return primary.get(key);
+				}
+			}, null);
 			if (ret != null) {
-				secondaryCache.put(key, ret, getSecondLevelTTL());
+				secondaryCache.put(key, ret, getSecondLevelTTL(ret));
 			}
 			return ret;
 		}
 	}
 
+	public Map<String,Object> getMulti(final Collection<String> keys) {
+		Map<String,Object> found = new HashMap<String,Object>(secondaryCache.getMulti(keys));
+		if (found.size() == keys.size()) {
+			return found;
+		}
+		// only the keys the second level missed go to the primary, in one bulk call.
+		List<String> misses = new ArrayList<String>(keys.size() - found.size());
+		for (String key : keys) {
+			if (!found.containsKey(key)) {
+				misses.add(key);
+			}
+		}
+		final List<String> primaryKeys = misses;
+		Map<String,Object> primary = callPrimary(new PrimaryCall<Map<String,Object>>() {
+			protected Map<String,Object> call(final ICache primary) {
+				return primary.getMulti(primaryKeys);
+			}
+		}, Collections.<String,Object>emptyMap());
+		if (!primary.isEmpty()) {
+			Map<String,Object> values = new HashMap<String,Object>(primary.size() * 2);
+			for (Map.Entry<String,Object> entry : primary.entrySet()) {
+				if (entry.getValue() instanceof Tombstone) {
+					secondaryCache.put(entry.getKey(), entry.getValue(), getSecondLevelTTL(entry.getValue()));
+				} else {
+					values.put(entry.getKey(), entry.getValue());
+				}
+			}
+			secondaryCache.putMulti(values, getSecondLevelTTL());
+			found.putAll(primary);
+		}
+		return found;
+	}
+
+	public void putMulti(final Map<String,Object> values, final int ttl) {
+		writePrimary(new PrimaryCall<Void>() {
+			protected Void call(final ICache primary) {
+				primary.putMulti(values, ttl);
+				return null;
+			}
+		});
+
+		if(ttl != 0 && ttl < getSecondLevelTTL()) {
+			secondaryCache.putMulti(values, ttl);
+		} else {
+			secondaryCache.putMulti(values, getSecondLevelTTL());
+		}
+	}
+
+	public void removeMulti(final Collection<String> keys) {
+		writePrimary(new PrimaryCall<Void>() {
+			protected Void call(final ICache primary) {
+				primary.removeMulti(keys);
+				return null;
+			}
+		});
+		secondaryCache.removeMulti(keys);
+	}
+
+	public CompletionStage<Object> getAsync(final String key) {
+		return orMiss(secondaryAsync.getAsync(key), null).thenCompose(new Function<Object, CompletionStage<Object>>() {
+			public CompletionStage<Object> apply(final Object ret) {
+				if (ret != null || !primaryBreaker.allowRequest()) {
+					return CompletableFuture.completedFuture(ret);
+				}
+				return orMiss(primaryAsync.getAsync(key).whenComplete(AsyncCache.this.<Object>reportPrimary(System.nanoTime())), null).thenApply(new Function<Object, Object>() {
+					public Object apply(final Object val) {
+						if (val != null) {
+							secondaryAsync.putAsync(key, val, getSecondLevelTTL(val));
+						}
+						return val;
+					}
+				});
+			}
+		});
+	}
+
+	public CompletionStage<Map<String,Object>> getMultiAsync(final Collection<String> keys) {
+		return orMiss(secondaryAsync.getMultiAsync(keys), Collections.<String,Object>emptyMap()).thenCompose(new Function<Map<String,Object>, CompletionStage<Map<String,Object>>>() {
+			public CompletionStage<Map<String,Object>> apply(final Map<String,Object> secondary) {
+				final Map<String,Object> found = new HashMap<String,Object>(secondary);
+				if (found.size() == keys.size() || !primaryBreaker.allowRequest()) {
+					return CompletableFuture.completedFuture(found);
+				}
+				List<String> misses = new ArrayList<String>(keys.size() - found.size());
+				for (String key : keys) {
+					if (!found.containsKey(key)) {
+						misses.add(key);
+					}
+				}
+				return orMiss(primaryAsync.getMultiAsync(misses).whenComplete(AsyncCache.this.<Map<String,Object>>reportPrimary(System.nanoTime())),
+						Collections.<String,Object>emptyMap()).thenApply(new Function<Map<String,Object>, Map<String,Object>>() {
+					public Map<String,Object> apply(final Map<String,Object> primary) {
+						for (Map.Entry<String,Object> entry : primary.entrySet()) {
+							secondaryAsync.putAsync(entry.getKey(), entry.getValue(), getSecondLevelTTL(entry.getValue()));
+						}
+						found.putAll(primary);
+						return found;
+					}
+				});
+			}
+		});
+	}
+
+	public CompletionStage<Void> putAsync(final String key, final Object value, final int ttl) {
+		int secondTtl = (ttl != 0 && ttl < getSecondLevelTTL()) ? ttl : getSecondLevelTTL();
+		CompletableFuture<Void> primary = CompletableFuture.completedFuture(null);
+		if (primaryBreaker.allowRequest()) {
+			primary = orMiss(primaryAsync.putAsync(key, value, ttl)
+					.whenComplete(this.<Void>reportPrimary(System.nanoTime())), null).toCompletableFuture();
+		}
+		return CompletableFuture.allOf(primary, orMiss(secondaryAsync.putAsync(key, value, secondTtl), null).toCompletableFuture());
+	}
+
+	public CompletionStage<Void> removeAsync(final String key) {
+		CompletableFuture<Void> primary = CompletableFuture.completedFuture(null);
+		if (primaryBreaker.allowRequest()) {
+			primary = orMiss(primaryAsync.removeAsync(key)
+					.whenComplete(this.<Void>reportPrimary(System.nanoTime())), null).toCompletableFuture();
+		}
+		return CompletableFuture.allOf(primary, orMiss(secondaryAsync.removeAsync(key), null).toCompletableFuture());
+	}
+
 	public List<String> getKeys() {
 		return primaryCache.getKeys();
 	}
 
+	/**
+	 * Scans the primary cache. One that cannot scan is paged from getKeys(), which lists every key per page.
+	 */
+	public KeyPage scanKeys(final String prefix, final String token, final int pageSize) {
+		if (!(primaryCache instanceof ISupportKeyScan)) {
+			return KeyPage.select(primaryCache.getKeys(), prefix, token, pageSize);
+		}
+		return ((ISupportKeyScan) primaryCache).scanKeys(prefix, token, pageSize);
+	}
+
 	public boolean keyExists(final String key) {
 		if (secondaryCache.keyExists(key)) {
 			return true;
 		}
-		return primaryCache.keyExists(key);
+		return callPrimary(new PrimaryCall<Boolean>() {
+			protected Boolean call(final ICache primary) {
+				return primary.keyExists(key);
+			}
+		}, Boolean.FALSE);
 	}
 
-	protected boolean doAsyncOperation() {
-		if(primaryCache instanceof ISupportAsyncOperations) {
-			return false;
+	/**
+	 * A tier whose stage fails reads as a miss. For the primary this runs after reportPrimary, so the breaker has seen the failure.
+	 */
+	protected static <T> CompletionStage<T> orMiss(final CompletionStage<T> stage, final T miss) {
+		return stage.exceptionally(new Function<Throwable, T>() {
+			public T apply(final Throwable t) {
+				return miss;
+			}
+		});
+	}
+
+	protected static abstract class PrimaryCall<T> {
+		protected abstract T call(ICache primary);
+	}
+
+	/**
+	 * Runs a call against the primary through its circuit breaker. While the breaker is open the primary
+	 * is not called and fallback is returned, so reads are served by the second level alone.
+	 */
+	protected <T> T callPrimary(final PrimaryCall<T> call, final T fallback) {
+		if (!primaryBreaker.allowRequest()) {
+			return fallback;
+		}
+		long start = System.nanoTime();
+		try {
+			T ret = call.call(primaryCache);
+			primaryBreaker.onSuccess(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+			return ret;
+		} catch (RuntimeException e) {
+			primaryBreaker.onFailure();
+			throw e;
 		}
-		return async;
 	}
 
-	public void put(final String key, final Object value, final int ttl) {
+	protected <T> BiConsumer<T, Throwable> reportPrimary(final long start) {
+		return new BiConsumer<T, Throwable>() {
+			public void accept(final T ret, final Throwable t) {
+				if (t == null) {
+					primaryBreaker.onSuccess(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+				} else {
+					primaryBreaker.onFailure();
+				}
+			}
+		};
+	}
+
+	protected void writePrimary(final PrimaryCall<Void> write) {
 		if(doAsyncOperation()) {
 			exec.execute(new Runnable() {
 				public void run() {
-					primaryCache.put(key, value, ttl);
+					callPrimary(write, null);
 				}
 			});
 		} else {
-			primaryCache.put(key, value,ttl);
+			callPrimary(write, null);
+		}
+	}
+
+	public CircuitBreaker getPrimaryBreaker() {
+		return primaryBreaker;
+	}
+
+	public void setPrimaryBreaker(final CircuitBreaker primaryBreaker) {
+		this.primaryBreaker = primaryBreaker;
+	}
+
+	protected boolean doAsyncOperation() {
+		if(primaryCache instanceof ISupportAsyncOperations) {
+			return false;
 		}
+		return async;
+	}
+
+	public void put(final String key, final Object value, final int ttl) {
+		writePrimary(new PrimaryCall<Void>() {
+			protected Void call(final ICache primary) {
+				primary.put(key, value, ttl);
+				return null;
+			}
+		});
 
 		if(ttl < getSecondLevelTTL()) {
 			secondaryCache.put(key, value, ttl);
@@ -110,29 +326,43 @@ public class AsyncCache implements IMultiTierCache,IAsyncCache {
 	}
 
 	public void put(final String key, final Object value) {
-		if(doAsyncOperation()) {
-			exec.execute(new Runnable() {
-				public void run() {
-					primaryCache.put(key, value);
-				}
-			});
-		} else {
-			primaryCache.put(key, value);
-		}
+		writePrimary(new PrimaryCall<Void>() {
+			protected Void call(final ICache primary) {
+				primary.put(key, value);
+				return null;
+			}
+		});
 		secondaryCache.put(key, value, getSecondLevelTTL());
 	}
 
 	public void remove(final String key) {
-		if(doAsyncOperation()) {
-			exec.execute(new Runnable() {
-				public void run() {
-					primaryCache.remove(key);
-				}
-			});
+		writePrimary(new PrimaryCall<Void>() {
+			protected Void call(final ICache primary) {
+				primary.remove(key);
+				return null;
+			}
+		});
+		secondaryCache.remove(key);
+	}
+
+	public boolean acquireLease(final String key, final int ttl) {
+		// leases have to be shared by the cluster, so they live on the primary.
+		if(primaryCache instanceof ISupportLeases) {
+			return ((ISupportLeases) primaryCache).acquireLease(key, ttl);
+		}
+		if(primaryCache.get(key) != null) {
+			return false;
+		}
+		primaryCache.put(key, true, ttl);
+		return true;
+	}
+
+	public void releaseLease(final String key) {
+		if(primaryCache instanceof ISupportLeases) {
+			((ISupportLeases) primaryCache).releaseLease(key);
 		} else {
 			primaryCache.remove(key);
 		}
-		secondaryCache.remove(key);
 	}
 
 	public void setSecondLevelTTL(final int ttl) {
@@ -143,6 +373,17 @@ public class AsyncCache implements IMultiTierCache,IAsyncCache {
 		return ttl;
 	}
 
+	// tombstones keep their own, usually shorter, ttl in the second level too.
+	protected int getSecondLevelTTL(final Object value) {
+		if (value instanceof Tombstone) {
+			int tombstoneTTL = ((Tombstone) value).getTTL();
+			if (tombstoneTTL != 0 && tombstoneTTL < ttl) {
+				return tombstoneTTL;
+			}
+		}
+		return ttl;
+	}
+
 	public void setMaxThreads(final int maxThreads) {
 		this.maxThreads = maxThreads;
 		exec.setMaximumPoolSize(maxThreads);
@@ -166,7 +407,30 @@ public class AsyncCache implements IMultiTierCache,IAsyncCache {
 		return minThreads;
 	}
 
+	/**
+	 * Stops taking async work, waits up to getShutdownTimeout() for queued writes to reach the tiers and
+	 * only then disconnects them, so a write-behind primary flushes everything that was accepted.
+	 */
 	public void disconnect() {
+		exec.shutdown();
+		if(primaryAsync instanceof BlockingCacheAdapter) {
+			((BlockingCacheAdapter) primaryAsync).shutdown();
+		}
+		if(secondaryAsync instanceof BlockingCacheAdapter) {
+			((BlockingCacheAdapter) secondaryAsync).shutdown();
+		}
+		long deadline = System.currentTimeMillis() + getShutdownTimeout();
+		try {
+			exec.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if(primaryAsync instanceof BlockingCacheAdapter) {
+			((BlockingCacheAdapter) primaryAsync).awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		}
+		if(secondaryAsync instanceof BlockingCacheAdapter) {
+			((BlockingCacheAdapter) secondaryAsync).awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		}
 		if(primaryCache instanceof IDistributedCache) {
 			((IDistributedCache) primaryCache).disconnect();
 		}
@@ -175,6 +439,13 @@ public class AsyncCache implements IMultiTierCache,IAsyncCache {
 		}
 	}
 
+	/**
+	 * How long disconnect() waits in total for queued async calls before tearing the tiers down.
+	 */
+	protected long getShutdownTimeout() {
+		return 10000;
+	}
+
 	public String getPoolName() {
 		if(primaryCache instanceof IDistributedCache) {
 			return ((IDistributedCache) primaryCache).getPoolName();
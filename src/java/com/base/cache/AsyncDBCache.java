@@ -39,4 +39,11 @@ public class AsyncDBCache extends AsyncCache {
 			final String poolName, final ICache cache,final int ttl) {
 		super(new DBCache(jdbcUrl,userName,password,driverName,poolName),cache,ttl);
 	}
+
+	/**
+	 * For a DBCache set up beforehand, with its pool settings or write-behind mode.
+	 */
+	public AsyncDBCache(final DBCache db, final ICache cache, final int ttl) {
+		super(db,cache,ttl);
+	}
 }
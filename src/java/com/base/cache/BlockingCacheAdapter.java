@@ -0,0 +1,215 @@
+/*
+ * Copyright 2009 Victor Igumnov <victori@fabulously40.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.base.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a blocking ICache on a bounded executor so it can be used through INonBlockingCache.
+ * When the queue is full the call is dropped instead of piling up work. Like any other failure the stage
+ * then completes exceptionally, so a caller such as a circuit breaker sees it; mapping it to a miss is up to the caller.
+ */
+public class BlockingCacheAdapter implements INonBlockingCache {
+	private static transient Logger logger = LoggerFactory.getLogger(BlockingCacheAdapter.class);
+	private final ICache cache;
+	private final String name;
+	private final int maxThreads;
+	private final int queueSize;
+	private volatile ThreadPoolExecutor exec;
+
+	public BlockingCacheAdapter(final ICache cache, final String name, final int maxThreads, final int queueSize) {
+		this.cache = cache;
+		this.name = name;
+		this.maxThreads = maxThreads;
+		this.queueSize = queueSize;
+	}
+
+	/**
+	 * @return the cache itself when it is natively non-blocking, otherwise an executor backed adapter.
+	 */
+	public static INonBlockingCache adapt(final ICache cache) {
+		if (cache instanceof INonBlockingCache) {
+			return (INonBlockingCache) cache;
+		}
+		return new BlockingCacheAdapter(cache, cache.getClass().getSimpleName(), 10, 1000);
+	}
+
+	protected ThreadPoolExecutor getExecutor() {
+		if (exec == null) {
+			synchronized (this) {
+				if (exec == null) {
+					// core == max so the bounded queue does not hold us at the core size.
+					ThreadPoolExecutor e = new ThreadPoolExecutor(maxThreads, maxThreads, 10, TimeUnit.SECONDS,
+							new ArrayBlockingQueue<Runnable>(queueSize));
+					e.allowCoreThreadTimeOut(true);
+					e.setThreadFactory(new ThreadFactory() {
+						private final AtomicInteger count = new AtomicInteger();
+
+						public Thread newThread(final Runnable r) {
+							Thread t = new Thread(r);
+							t.setName(name + "-async-" + count.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+					exec = e;
+				}
+			}
+		}
+		return exec;
+	}
+
+	protected <T> CompletionStage<T> submit(final ICall<T> call) {
+		final CompletableFuture<T> ret = new CompletableFuture<T>();
+		try {
+			getExecutor().execute(new Runnable() {
+				public void run() {
+					try {
+						ret.complete(call.call());
+					} catch (Throwable t) {
+						logger.error("async cache operation failed", t);
+						ret.completeExceptionally(t);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			logger.warn(name + " async queue is full, call dropped");
+			ret.completeExceptionally(e);
+		}
+		return ret;
+	}
+
+	protected interface ICall<T> {
+		public T call();
+	}
+
+	public CompletionStage<Object> getAsync(final String key) {
+		return submit(new ICall<Object>() {
+			public Object call() {
+				return cache.get(key);
+			}
+		});
+	}
+
+	public CompletionStage<Map<String,Object>> getMultiAsync(final Collection<String> keys) {
+		if (keys.isEmpty()) {
+			return CompletableFuture.completedFuture((Map<String,Object>) new HashMap<String,Object>());
+		}
+		return submit(new ICall<Map<String,Object>>() {
+			public Map<String,Object> call() {
+				return cache.getMulti(keys);
+			}
+		});
+	}
+
+	public CompletionStage<Void> putAsync(final String key, final Object value, final int ttl) {
+		return submit(new ICall<Void>() {
+			public Void call() {
+				cache.put(key, value, ttl);
+				return null;
+			}
+		});
+	}
+
+	public CompletionStage<Void> removeAsync(final String key) {
+		return submit(new ICall<Void>() {
+			public Void call() {
+				cache.remove(key);
+				return null;
+			}
+		});
+	}
+
+	public int getQueueDepth() {
+		return exec == null ? 0 : exec.getQueue().size();
+	}
+
+	public void shutdown() {
+		if (exec != null) {
+			exec.shutdown();
+		}
+	}
+
+	/**
+	 * Waits for calls already queued before shutdown() to finish. Returns false if they did not finish in time.
+	 */
+	public boolean awaitTermination(final long timeout, final TimeUnit unit) {
+		if (exec == null) {
+			return true;
+		}
+		try {
+			return exec.awaitTermination(timeout, unit);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	public Object get(final String key) {
+		return cache.get(key);
+	}
+
+	public void put(final String key, final Object value, final int ttl) {
+		cache.put(key, value, ttl);
+	}
+
+	public void put(final String key, final Object value) {
+		cache.put(key, value);
+	}
+
+	public void clear() {
+		cache.clear();
+	}
+
+	public void remove(final String key) {
+		cache.remove(key);
+	}
+
+	public boolean keyExists(final String key) {
+		return cache.keyExists(key);
+	}
+
+	public List<String> getKeys() {
+		return cache.getKeys();
+	}
+
+	public Map<String,Object> getMulti(final Collection<String> keys) {
+		return cache.getMulti(keys);
+	}
+
+	public void putMulti(final Map<String,Object> values, final int ttl) {
+		cache.putMulti(values, ttl);
+	}
+
+	public void removeMulti(final Collection<String> keys) {
+		cache.removeMulti(keys);
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2009 Victor Igumnov <victori@fabulously40.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.base.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Membership only index, about 10 bits per key at a 1% false positive rate. Two generations are kept:
+ * once the current one has seen expectedKeys keys it becomes the previous one and the oldest is dropped,
+ * so keys age out and the false positive rate does not creep up on long running nodes.
+ * Removes are ignored, a bloom filter cannot forget a single key.
+ */
+public class BloomKeyIndex implements IKeyIndex {
+	private final int expectedKeys;
+	private final int bits;
+	private final int hashes;
+	private volatile Generation current;
+	private volatile Generation previous;
+
+	private static final class Generation {
+		final AtomicLongArray words;
+		final AtomicInteger added = new AtomicInteger();
+
+		Generation(final int bits) {
+			this.words = new AtomicLongArray((bits + 63) >>> 6);
+		}
+	}
+
+	public BloomKeyIndex(final int expectedKeys) {
+		this(expectedKeys, 0.01);
+	}
+
+	public BloomKeyIndex(final int expectedKeys, final double falsePositiveRate) {
+		this.expectedKeys = Math.max(1, expectedKeys);
+		double ln2 = Math.log(2);
+		this.bits = (int) Math.max(64, Math.ceil(-this.expectedKeys * Math.log(falsePositiveRate) / (ln2 * ln2)));
+		this.hashes = (int) Math.max(1, Math.round((double) bits / this.expectedKeys * ln2));
+		this.current = new Generation(bits);
+		this.previous = new Generation(bits);
+	}
+
+	// 64 bit FNV-1a, the two halves feed the double hashing below.
+	protected static long hash(final String key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	public void add(final String key, final int ttl) {
+		Generation gen = current;
+		if (contains(gen, key)) {
+			return;
+		}
+		long h = hash(key);
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32);
+		for (int i = 0; i < hashes; i++) {
+			int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+			long mask = 1L << (bit & 63);
+			int word = bit >>> 6;
+			long old;
+			do {
+				old = gen.words.get(word);
+			} while ((old & mask) == 0 && !gen.words.compareAndSet(word, old, old | mask));
+		}
+		if (gen.added.incrementAndGet() >= expectedKeys) {
+			rotate(gen);
+		}
+	}
+
+	protected synchronized void rotate(final Generation full) {
+		if (current == full) {
+			previous = full;
+			current = new Generation(bits);
+		}
+	}
+
+	public void remove(final String key) {
+	}
+
+	public synchronized void clear() {
+		current = new Generation(bits);
+		previous = new Generation(bits);
+	}
+
+	public boolean mightContain(final String key) {
+		return contains(current, key) || contains(previous, key);
+	}
+
+	protected boolean contains(final Generation gen, final String key) {
+		long h = hash(key);
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32);
+		for (int i = 0; i < hashes; i++) {
+			int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+			if ((gen.words.get(bit >>> 6) & (1L << (bit & 63))) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public List<String> getKeys() {
+		return new ArrayList<String>();
+	}
+
+	public KeyPage scanKeys(final String prefix, final String token, final int pageSize) {
+		KeyPage.checkPageSize(pageSize);
+		return KeyPage.empty();
+	}
+
+	public Accuracy getAccuracy() {
+		return Accuracy.MEMBERSHIP;
+	}
+
+	/**
+	 * @return roughly how many distinct keys the index remembers.
+	 */
+	public long size() {
+		return current.added.get() + previous.added.get();
+	}
+}
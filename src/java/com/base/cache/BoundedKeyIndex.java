@@ -0,0 +1,306 @@
+/*
+ * Copyright 2009 Victor Igumnov <victori@fabulously40.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.base.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Keeps at most maxKeys recently written keys along with when they expire. Keys live in open addressed
+ * arrays split into stripes with a lock each, so there is no global lock and no node object per key.
+ * A full stripe evicts by sampling a few slots after a rotating hand: an expired key goes first, else
+ * the one written longest ago. Reads do not change anything.
+ */
+public class BoundedKeyIndex implements IKeyIndex {
+	private static final int SAMPLE = 8;
+	// expiry is stored as seconds from this base, so it fits an int.
+	private final long base = System.currentTimeMillis() / 1000;
+	private final int maxKeys;
+	private final Stripe[] stripes;
+
+	public BoundedKeyIndex(final int maxKeys) {
+		this.maxKeys = maxKeys;
+		this.stripes = new Stripe[Integer.highestOneBit(Math.max(1, Math.min(16, maxKeys / 64)))];
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new Stripe(Math.max(1, maxKeys / stripes.length));
+		}
+	}
+
+	protected int now() {
+		return (int) (System.currentTimeMillis() / 1000 - base);
+	}
+
+	protected static boolean isExpired(final int expiry, final int now) {
+		return expiry != 0 && expiry <= now;
+	}
+
+	protected static int hash(final String key) {
+		int h = key.hashCode() * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+
+	private Stripe stripe(final int hash) {
+		return stripes[(hash >>> 28) & (stripes.length - 1)];
+	}
+
+	public void add(final String key, final int ttl) {
+		int h = hash(key);
+		int expiry = ttl > 0 ? now() + ttl : 0;
+		Stripe stripe = stripe(h);
+		synchronized (stripe) {
+			stripe.put(key, h, expiry, now());
+		}
+	}
+
+	public void remove(final String key) {
+		int h = hash(key);
+		Stripe stripe = stripe(h);
+		synchronized (stripe) {
+			int slot = stripe.find(key, h);
+			if (slot >= 0) {
+				stripe.delete(slot);
+			}
+		}
+	}
+
+	public void clear() {
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				stripe.clear();
+			}
+		}
+	}
+
+	public boolean mightContain(final String key) {
+		int h = hash(key);
+		Stripe stripe = stripe(h);
+		synchronized (stripe) {
+			int slot = stripe.find(key, h);
+			return slot >= 0 && !isExpired(stripe.expiry[slot], now());
+		}
+	}
+
+	// expired keys are left out and dropped afterwards, deleting shifts slots under the walk.
+	public List<String> getKeys() {
+		int now = now();
+		List<String> ret = new ArrayList<String>();
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				List<String> expired = null;
+				for (int i = 0; i < stripe.keys.length; i++) {
+					String key = stripe.keys[i];
+					if (key == null) {
+						continue;
+					}
+					if (isExpired(stripe.expiry[i], now)) {
+						if (expired == null) {
+							expired = new ArrayList<String>();
+						}
+						expired.add(key);
+					} else {
+						ret.add(key);
+					}
+				}
+				if (expired != null) {
+					for (String key : expired) {
+						stripe.delete(stripe.find(key, hash(key)));
+					}
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Each stripe is paged on its own under its lock, the page is then picked from the stripes' pages.
+	 */
+	public KeyPage scanKeys(final String prefix, final String token, final int pageSize) {
+		KeyPage.checkPageSize(pageSize);
+		int now = now();
+		List<String> candidates = new ArrayList<String>();
+		boolean more = false;
+		for (Stripe stripe : stripes) {
+			KeyPage page;
+			synchronized (stripe) {
+				page = KeyPage.select(stripe.live(now), prefix, token, pageSize);
+			}
+			candidates.addAll(page.getKeys());
+			more |= page.hasMore();
+		}
+		KeyPage page = KeyPage.select(candidates, prefix, token, pageSize);
+		if (more && !page.hasMore()) {
+			// a stripe had more keys, so the page is full and the scan goes on after its last key.
+			return new KeyPage(page.getKeys(), page.getKeys().get(page.getKeys().size() - 1));
+		}
+		return page;
+	}
+
+	public Accuracy getAccuracy() {
+		return Accuracy.RECENT;
+	}
+
+	public long size() {
+		long size = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.size;
+			}
+		}
+		return size;
+	}
+
+	public int getMaxKeys() {
+		return maxKeys;
+	}
+
+	/**
+	 * Linear probing over parallel arrays, kept at most 3/4 full. Callers hold the stripe's lock.
+	 */
+	private static final class Stripe {
+		final int capacity;
+		final String[] keys;
+		final int[] expiry;
+		// write order within the stripe, compared by subtraction so it may wrap.
+		final int[] written;
+		final int mask;
+		int size;
+		int tick;
+		int hand;
+
+		Stripe(final int capacity) {
+			int length = 2;
+			while (length < capacity + capacity / 3 + 1) {
+				length <<= 1;
+			}
+			this.capacity = capacity;
+			this.keys = new String[length];
+			this.expiry = new int[length];
+			this.written = new int[length];
+			this.mask = length - 1;
+		}
+
+		// the slot of key, or -(free slot) - 1 when it is not there.
+		int find(final String key, final int hash) {
+			int i = hash & mask;
+			while (keys[i] != null) {
+				if (keys[i].equals(key)) {
+					return i;
+				}
+				i = (i + 1) & mask;
+			}
+			return -i - 1;
+		}
+
+		void put(final String key, final int hash, final int expires, final int now) {
+			int slot = find(key, hash);
+			if (slot < 0 && size >= capacity) {
+				evict(now);
+				slot = find(key, hash);
+			}
+			if (slot < 0) {
+				slot = -slot - 1;
+				keys[slot] = key;
+				size++;
+			}
+			expiry[slot] = expires;
+			written[slot] = ++tick;
+		}
+
+		void evict(final int now) {
+			int victim = -1;
+			int seen = 0;
+			for (int n = 0; n < keys.length && seen < SAMPLE; n++) {
+				int i = hand;
+				hand = (hand + 1) & mask;
+				if (keys[i] == null) {
+					continue;
+				}
+				seen++;
+				if (isExpired(expiry[i], now)) {
+					victim = i;
+					break;
+				}
+				if (victim < 0 || written[i] - written[victim] < 0) {
+					victim = i;
+				}
+			}
+			delete(victim);
+		}
+
+		// backward shift deletion, so probing needs no tombstones.
+		void delete(final int slot) {
+			int free = slot;
+			keys[free] = null;
+			size--;
+			for (int i = (free + 1) & mask; keys[i] != null; i = (i + 1) & mask) {
+				int home = hash(keys[i]) & mask;
+				boolean stays = free <= i ? (free < home && home <= i) : (free < home || home <= i);
+				if (!stays) {
+					keys[free] = keys[i];
+					expiry[free] = expiry[i];
+					written[free] = written[i];
+					keys[i] = null;
+					free = i;
+				}
+			}
+		}
+
+		void clear() {
+			Arrays.fill(keys, null);
+			size = 0;
+		}
+
+		Iterable<String> live(final int now) {
+			return new Iterable<String>() {
+				public Iterator<String> iterator() {
+					return new Iterator<String>() {
+						private int next = advance(0);
+
+						private int advance(final int from) {
+							for (int i = from; i < keys.length; i++) {
+								if (keys[i] != null && !isExpired(expiry[i], now)) {
+									return i;
+								}
+							}
+							return keys.length;
+						}
+
+						public boolean hasNext() {
+							return next < keys.length;
+						}
+
+						public String next() {
+							if (!hasNext()) {
+								throw new NoSuchElementException();
+							}
+							String ret = keys[next];
+							next = advance(next + 1);
+							return ret;
+						}
+
+						public void remove() {
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2009 Victor Igumnov <victori@fabulously40.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.base.cache;
+
+import java.io.Serializable;
+
+/**
+ * Wraps a cached value with its soft expiry and refresh state, so CacheLayer can tell
+ * a stale entry and an in progress refresh from a single get instead of the dp-/fdp- keys.
+ */
+public class CacheEnvelope implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private final Object value;
+	private final long softExpiry;
+	private final long hardExpiry;
+	private final long refreshUntil;
+	private final long fetchMillis;
+
+	public CacheEnvelope(final Object value, final long softExpiry, final long hardExpiry, final long refreshUntil,
+			final long fetchMillis) {
+		this.value = value;
+		this.softExpiry = softExpiry;
+		this.hardExpiry = hardExpiry;
+		this.refreshUntil = refreshUntil;
+		this.fetchMillis = fetchMillis;
+	}
+
+	public static CacheEnvelope wrap(final Object value, final int ttl, final int dogPileMultiplier, final long now,
+			final long fetchMillis) {
+		long hard = (ttl == 0) ? 0 : now + ttl * 1000L * Math.max(1, dogPileMultiplier);
+		long soft = (ttl == 0) ? 0 : now + ttl * 1000L;
+		return new CacheEnvelope(value, soft, hard, 0, fetchMillis);
+	}
+
+	public static Object unwrap(final Object o) {
+		return (o instanceof CacheEnvelope) ? ((CacheEnvelope) o).getValue() : o;
+	}
+
+	public CacheEnvelope refreshing(final long until) {
+		return new CacheEnvelope(value, softExpiry, hardExpiry, until, fetchMillis);
+	}
+
+	public boolean isStale(final long now) {
+		return softExpiry != 0 && now >= softExpiry;
+	}
+
+	public boolean isRefreshing(final long now) {
+		return refreshUntil > now;
+	}
+
+	/**
+	 * @return seconds left until the hard expiry, for rewriting the envelope without extending it.
+	 */
+	public int getRemainingTTL(final long now) {
+		if (hardExpiry == 0) {
+			return 0;
+		}
+		return (int) Math.max(1, (hardExpiry - now + 999) / 1000);
+	}
+
+	public Object getValue() {
+		return value;
+	}
+
+	public long getSoftExpiry() {
+		return softExpiry;
+	}
+
+	public long getHardExpiry() {
+		return hardExpiry;
+	}
+
+	public long getRefreshUntil() {
+		return refreshUntil;
+	}
+
+	/**
+	 * @return how long the fetch that produced this value took, used to weigh early refreshes.
+	 */
+	public long getFetchMillis() {
+		return fetchMillis;
+	}
+}
@@ -19,15 +19,207 @@ package com.base.cache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.DoubleSupplier;
 
 public class CacheLayer {
 	private static transient Logger logger = LoggerFactory.getLogger(CacheLayer.class);
 	private static String DOGPILE_PREFIX = "dp-";
 	private static String DOGPILE_FETCH_PROGRESS_PREFIX = "fdp-";
-	private static transient ThreadPoolExecutor exec = new ThreadPoolExecutor(5, 50, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+	private static volatile RefreshScheduler defaultScheduler = new RefreshScheduler("tcache-refresh", 5, 1000, RefreshScheduler.OverflowPolicy.DROP_OLDEST);
+	private static final Map<ICache, RefreshScheduler> schedulers = Collections.synchronizedMap(new WeakHashMap<ICache, RefreshScheduler>());
+	private static final ConcurrentHashMap<FlightKey, FutureTask<Object>> inFlight = new ConcurrentHashMap<FlightKey, FutureTask<Object>>();
+	private static final AtomicLong coalesced = new AtomicLong();
+	private static volatile boolean singleFlight = false;
+	private static volatile long singleFlightTimeout = 10000;
+	private static volatile boolean envelopeMode = false;
+	private static volatile int negativeTTL = 0;
+	private static volatile boolean xfetchMode = false;
+	private static volatile double xfetchBeta = 1.0;
+	private static final DoubleSupplier DEFAULT_XFETCH_RANDOM = new DoubleSupplier() {
+		public double getAsDouble() {
+			return ThreadLocalRandom.current().nextDouble();
+		}
+	};
+	private static volatile DoubleSupplier xfetchRandom = DEFAULT_XFETCH_RANDOM;
+	private static final AtomicLong earlyRefreshes = new AtomicLong();
+	// give a 2 minute timeout for fetch purposes.
+	private static volatile int refreshLeaseSeconds = 120;
+	private static volatile RefreshAheadRegistry[] refreshAhead = new RefreshAheadRegistry[0];
+
+	/**
+	 * When above 0, a null from the loader is cached as a Tombstone for that many seconds and
+	 * reads of it return null without calling the loader again. 0 turns negative caching off.
+	 */
+	public static void setNegativeTTL(final int seconds) {
+		negativeTTL = seconds;
+	}
+
+	public static int getNegativeTTL() {
+		return negativeTTL;
+	}
+
+	/**
+	 * Scheduler used for background refreshes of caches without one of their own. The one it replaces
+	 * is shut down.
+	 */
+	public static void setDefaultRefreshScheduler(final RefreshScheduler scheduler) {
+		RefreshScheduler old = defaultScheduler;
+		defaultScheduler = scheduler;
+		if (old != scheduler) {
+			old.shutdown();
+		}
+	}
+
+	public static RefreshScheduler getDefaultRefreshScheduler() {
+		return defaultScheduler;
+	}
+
+	/**
+	 * Give a cache its own refresh scheduler, so one pool's refresh storm can not starve another's.
+	 */
+	public static void setRefreshScheduler(final ICache cache, final RefreshScheduler scheduler) {
+		if (scheduler == null) {
+			schedulers.remove(cache);
+		} else {
+			schedulers.put(cache, scheduler);
+		}
+	}
+
+	public static RefreshScheduler getRefreshScheduler(final ICache cache) {
+		RefreshScheduler scheduler = schedulers.get(cache);
+		return scheduler == null ? defaultScheduler : scheduler;
+	}
+
+	/**
+	 * When on, a miss runs one loader per cache and key in this JVM, concurrent callers wait on its result.
+	 */
+	public static void setSingleFlight(final boolean enabled) {
+		singleFlight = enabled;
+	}
+
+	public static boolean isSingleFlight() {
+		return singleFlight;
+	}
+
+	/**
+	 * How long a coalesced caller waits on the running loader before fetching on its own, in milliseconds.
+	 */
+	public static void setSingleFlightTimeout(final long millis) {
+		singleFlightTimeout = millis;
+	}
+
+	public static long getSingleFlightTimeout() {
+		return singleFlightTimeout;
+	}
+
+	/**
+	 * When on, stale-while-revalidate entries are stored as a CacheEnvelope carrying their soft expiry
+	 * and refresh state, so a hit costs one get and a refresh one write. Entries still guarded by
+	 * the dp-/fdp- keys, written by nodes without envelope mode, keep being served the old way.
+	 */
+	public static void setEnvelopeMode(final boolean enabled) {
+		envelopeMode = enabled;
+	}
+
+	public static boolean isEnvelopeMode() {
+		return envelopeMode;
+	}
+
+	/**
+	 * Probabilistic early expiration (XFetch). Values are stored in a CacheEnvelope with the duration of
+	 * their last fetch, and each reader refreshes with a probability that rises as the soft expiry nears,
+	 * weighted by that duration. Works with or without a dogPileMultiplier.
+	 */
+	public static void setXFetchMode(final boolean enabled) {
+		xfetchMode = enabled;
+	}
+
+	public static boolean isXFetchMode() {
+		return xfetchMode;
+	}
+
+	/**
+	 * Values above 1.0 favour earlier refreshes, below 1.0 later ones.
+	 */
+	public static void setXFetchBeta(final double beta) {
+		xfetchBeta = beta;
+	}
+
+	public static double getXFetchBeta() {
+		return xfetchBeta;
+	}
+
+	/**
+	 * Replaces the uniform draw in (0,1) XFetch weighs each read with, so tests can pin it. Null restores
+	 * ThreadLocalRandom.
+	 */
+	public static void setXFetchRandom(final DoubleSupplier random) {
+		xfetchRandom = random == null ? DEFAULT_XFETCH_RANDOM : random;
+	}
+
+	/**
+	 * @return refreshes XFetch started before the soft expiry was reached.
+	 */
+	public static long getEarlyRefreshCount() {
+		return earlyRefreshes.get();
+	}
+
+	/**
+	 * How long a node owns the refresh of a stale key, in seconds. Caches implementing ISupportLeases
+	 * take it atomically so one node in the cluster refreshes, others fall back to the fdp- marker.
+	 */
+	public static void setRefreshLeaseSeconds(final int seconds) {
+		refreshLeaseSeconds = seconds;
+	}
+
+	public static int getRefreshLeaseSeconds() {
+		return refreshLeaseSeconds;
+	}
+
+	protected static synchronized void addRefreshAhead(final RefreshAheadRegistry registry) {
+		RefreshAheadRegistry[] registries = Arrays.copyOf(refreshAhead, refreshAhead.length + 1);
+		registries[registries.length - 1] = registry;
+		refreshAhead = registries;
+	}
+
+	protected static synchronized void removeRefreshAhead(final RefreshAheadRegistry registry) {
+		List<RefreshAheadRegistry> registries = new ArrayList<RefreshAheadRegistry>(Arrays.asList(refreshAhead));
+		registries.remove(registry);
+		refreshAhead = registries.toArray(new RefreshAheadRegistry[registries.size()]);
+	}
+
+	// counts the read for refresh ahead, so keys only read through this class still count as hot.
+	protected static void recordRead(final ICache cache, final String key) {
+		RefreshAheadRegistry[] registries = refreshAhead;
+		for (int i = 0; i < registries.length; i++) {
+			registries[i].recordRead(cache, key);
+		}
+	}
+
+	/**
+	 * @return how many callers were served by another caller's loader instead of running their own.
+	 */
+	public static long getCoalescedCount() {
+		return coalesced.get();
+	}
 
 	public static Object addOrReplace(final ICache cache, final String key, final IFetch fetch, final int ttl) {
 		return addOrReplace(cache,key,fetch,ttl,0);
@@ -45,22 +237,29 @@ public class CacheLayer {
 		if (cache == null) {
 			return fetch.getObject();
 		}
+		recordRead(cache, key);
 
 		try {
 			Object o = cache.get(key);
 
-			if (o != null) {
+			if (o instanceof Tombstone) {
+				return null;
+			} else if (o instanceof CacheEnvelope) {
+				return checkEnvelope(cache, key, (CacheEnvelope) o, fetch, ttl, dogPileMultiplier);
+			} else if (o != null) {
 
 				if(dogPileMultiplier != 0) {
                     if(logger.isDebugEnabled()) {
 					    logger.debug("Stale cache check. for key "+ getDpKey(key));
                     }
 					Object ret = cache.get(getDpKey(key));
-					if(ret == null && cache.get(getDpProgressKey(key)) == null) {
-						// give a 2 minute timeout for fetch purposes.
-						cache.put(getDpProgressKey(key), true, 120);
-						logger.debug("Cache stale, fetching new data.");
-						exec.execute(new CacheFetchWorker(cache, fetch, key, ttl, dogPileMultiplier));
+					if(ret == null) {
+						if(acquireRefresh(cache, key)) {
+							logger.debug("Cache stale, fetching new data.");
+							scheduleRefresh(cache, key, new CacheFetchWorker(cache, fetch, key, ttl, dogPileMultiplier));
+						} else {
+							recordStaleRead(cache, key);
+						}
 					}
                     if(logger.isDebugEnabled()) {
 					    logger.debug(ret == null ? "Returning stale cache." : "Returning fresh cache." );
@@ -68,19 +267,10 @@ public class CacheLayer {
 				}
 
 				return o;
+			} else if (singleFlight) {
+				return loadSingleFlight(cache, key, fetch, ttl, dogPileMultiplier);
 			} else {
-				Object val = fetch.getObject();
-
-				if(dogPileMultiplier != 0) {
-					cache.put(key, val, ttl*dogPileMultiplier);
-					cache.put(getDpKey(key),true,ttl);
-					// If there is any.
-					cache.remove(getDpProgressKey(key));
-				} else {
-					cache.put(key, val, ttl);
-				}
-
-				return val;
+				return fetchAndStore(cache, key, fetch, ttl, dogPileMultiplier);
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -91,8 +281,140 @@ public class CacheLayer {
 		}
 	}
 
+	protected static Object checkEnvelope(final ICache cache, final String key, final CacheEnvelope envelope, final IFetch fetch, final int ttl,final int dogPileMultiplier) {
+		long now = System.currentTimeMillis();
+		if(envelope.isRefreshing(now)) {
+			recordStaleRead(cache, key);
+		} else if(shouldRefresh(envelope, now)) {
+			if(cache instanceof ISupportLeases) {
+				if(!acquireRefresh(cache, key)) {
+					recordStaleRead(cache, key);
+					return envelope.getValue();
+				}
+			} else {
+				// mark the refresh in the envelope itself, other readers keep serving the stale value meanwhile.
+				cache.put(key, envelope.refreshing(now + refreshLeaseSeconds * 1000L), envelope.getRemainingTTL(now));
+			}
+			logger.debug("Cache stale, fetching new data.");
+			scheduleRefresh(cache, key, new CacheFetchWorker(cache, fetch, key, ttl, dogPileMultiplier, true));
+		}
+		return envelope.getValue();
+	}
+
+	protected static void scheduleRefresh(final ICache cache, final String key, final CacheFetchWorker worker) {
+		// a refresh of the same key already queued or running absorbs this one.
+		getRefreshScheduler(cache).submit(new FlightKey(cache, key), worker, new Runnable() {
+			public void run() {
+				worker.abandon();
+			}
+		});
+	}
+
+	// a stale read while a refresh is out counts towards the priority of that refresh in the scheduler.
+	protected static void recordStaleRead(final ICache cache, final String key) {
+		getRefreshScheduler(cache).recordRead(new FlightKey(cache, key));
+	}
+
+	protected static boolean acquireRefresh(final ICache cache, final String key) {
+		if(cache instanceof ISupportLeases) {
+			return ((ISupportLeases) cache).acquireLease(getDpProgressKey(key), refreshLeaseSeconds);
+		}
+		if(cache.get(getDpProgressKey(key)) != null) {
+			return false;
+		}
+		cache.put(getDpProgressKey(key), true, refreshLeaseSeconds);
+		return true;
+	}
+
+	protected static void releaseRefresh(final ICache cache, final String key) {
+		if(cache instanceof ISupportLeases) {
+			((ISupportLeases) cache).releaseLease(getDpProgressKey(key));
+		} else {
+			cache.remove(getDpProgressKey(key));
+		}
+	}
+
+	protected static boolean shouldRefresh(final CacheEnvelope envelope, final long now) {
+		if(!xfetchMode || envelope.getSoftExpiry() == 0) {
+			return envelope.isStale(now);
+		}
+		// XFetch: refresh once now - delta * beta * ln(rand) reaches the expiry.
+		double gap = envelope.getFetchMillis() * xfetchBeta * -Math.log(xfetchRandom.getAsDouble());
+		if(now + gap >= envelope.getSoftExpiry()) {
+			if(now < envelope.getSoftExpiry()) {
+				earlyRefreshes.incrementAndGet();
+			}
+			return true;
+		}
+		return false;
+	}
+
+	protected static boolean useEnvelope(final int dogPileMultiplier) {
+		return xfetchMode || (dogPileMultiplier != 0 && envelopeMode);
+	}
+
+	protected static void putEnvelope(final ICache cache, final String key, final Object val, final int ttl,final int dogPileMultiplier, final long fetchMillis) {
+		int hardTtl = (dogPileMultiplier == 0) ? ttl : ttl*dogPileMultiplier;
+		cache.put(key, CacheEnvelope.wrap(val, ttl, dogPileMultiplier, System.currentTimeMillis(), fetchMillis), hardTtl);
+	}
+
+	protected static Object fetchAndStore(final ICache cache, final String key, final IFetch fetch, final int ttl,final int dogPileMultiplier) {
+		long start = System.currentTimeMillis();
+		Object val = fetch.getObject();
+
+		if(val == null && negativeTTL > 0) {
+			cache.put(key, new Tombstone(negativeTTL), negativeTTL);
+			// a refresh lease taken for the value that went away is let go, as on the value path.
+			if(useEnvelope(dogPileMultiplier) ? cache instanceof ISupportLeases : dogPileMultiplier != 0) {
+				releaseRefresh(cache, key);
+			}
+		} else if(useEnvelope(dogPileMultiplier)) {
+			if(val != null) {
+				putEnvelope(cache, key, val, ttl, dogPileMultiplier, System.currentTimeMillis() - start);
+			}
+		} else if(dogPileMultiplier != 0) {
+			cache.put(key, val, ttl*dogPileMultiplier);
+			cache.put(getDpKey(key),true,ttl);
+			// If there is any.
+			releaseRefresh(cache, key);
+		} else {
+			cache.put(key, val, ttl);
+		}
+
+		return val;
+	}
+
+	protected static Object loadSingleFlight(final ICache cache, final String key, final IFetch fetch, final int ttl,final int dogPileMultiplier) throws Exception {
+		FlightKey flightKey = new FlightKey(cache, key);
+		FutureTask<Object> task = new FutureTask<Object>(new Callable<Object>() {
+			public Object call() {
+				return fetchAndStore(cache, key, fetch, ttl, dogPileMultiplier);
+			}
+		});
+		FutureTask<Object> running = inFlight.putIfAbsent(flightKey, task);
+		try {
+			if (running == null) {
+				task.run();
+				return task.get();
+			}
+			coalesced.incrementAndGet();
+			return running.get(singleFlightTimeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			logger.debug("Timed out waiting on loader for " + key + ", fetching ourselves.");
+			return fetch.getObject();
+		} catch (ExecutionException e) {
+			throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+		} finally {
+			if (running == null) {
+				inFlight.remove(flightKey, task);
+			}
+		}
+	}
+
 	public static Object get(final ICache cache, final String key) {
-		return cache.get(key);
+		recordRead(cache, key);
+		Object o = cache.get(key);
+		return (o instanceof Tombstone) ? null : CacheEnvelope.unwrap(o);
 	}
 
 	public static void add(final ICache cache, final String key, final Object value, final int ttl) {
@@ -111,41 +433,151 @@ public class CacheLayer {
 		cache.remove(key);
 	}
 
-	public static class CacheFetchWorker implements Runnable {
+	protected static class FlightKey {
+		private final ICache cache;
+		private final String key;
+
+		public FlightKey(final ICache cache, final String key) {
+			this.cache = cache;
+			this.key = key;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (!(o instanceof FlightKey)) {
+				return false;
+			}
+			FlightKey other = (FlightKey) o;
+			return cache == other.cache && key.equals(other.key);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(cache) + key.hashCode();
+		}
+	}
+
+	public static class CacheFetchWorker implements ICompletableRefresh {
 		private IFetch fetch;
 		private String key;
 		private ICache cache;
 		private int ttl;
 		private int dogPileMultiplier;
+		private boolean envelope;
 
 		public CacheFetchWorker(final ICache cache,final IFetch fetch,final String key,final int ttl,final int dogPileMultiplier) {
+			this(cache, fetch, key, ttl, dogPileMultiplier, false);
+		}
+
+		public CacheFetchWorker(final ICache cache,final IFetch fetch,final String key,final int ttl,final int dogPileMultiplier,final boolean envelope) {
 			this.fetch = fetch;
 			this.key = key;
 			this.cache = cache;
 			this.ttl = ttl;
 			this.dogPileMultiplier = dogPileMultiplier;
+			this.envelope = envelope;
 		}
 
+		/**
+		 * For an ICompletableFetch the cache is written once the loader completes, run() only starts it.
+		 */
+		@SuppressWarnings("deprecation")
 		public void run() {
+			if(fetch instanceof ICompletableFetch) {
+				refreshAsync();
+				return;
+			}
+			final long start = System.currentTimeMillis();
 			Object val = null;
+			boolean loaded = true;
 			if(fetch instanceof IAsyncFetch) {
 				try {
 					val = ((IAsyncFetch)fetch).getObjectAsync();
 				} catch (Exception e) {
 					// sometimes we fail ;-(
+					loaded = false;
 				}
 			} else {
 				val = fetch.getObject();
 			}
-			if(val == null) {
+			store(val, start, loaded);
+		}
+
+		/**
+		 * @return completes once the cache was written, exceptionally if the loader failed.
+		 */
+		public CompletionStage<Void> refreshAsync() {
+			if(!(fetch instanceof ICompletableFetch)) {
+				run();
+				return CompletableFuture.completedFuture(null);
+			}
+			final long start = System.currentTimeMillis();
+			CompletionStage<Object> stage;
+			try {
+				stage = ((ICompletableFetch)fetch).fetchAsync();
+			} catch (Exception e) {
+				logger.error("Failed to start fetch of " + key, e);
+				store(null, start, false);
+				CompletableFuture<Void> failed = new CompletableFuture<Void>();
+				failed.completeExceptionally(e);
+				return failed;
+			}
+			// the write is chained onto the loader, no thread waits on it. It blocks, so it runs on the
+			// scheduler's workers rather than on whatever thread completed the load.
+			return stage.handleAsync(new BiFunction<Object, Throwable, Void>() {
+				public Void apply(final Object val, final Throwable t) {
+					if(t != null) {
+						logger.error("Failed to fetch " + key, t);
+					}
+					store(val, start, t == null);
+					if(t != null) {
+						throw new CompletionException(t);
+					}
+					return null;
+				}
+			}, getRefreshScheduler(cache).getContinuationExecutor());
+		}
+
+		/**
+		 * The refresh will not run: lets go of the lease taken for it, so the next stale read can schedule
+		 * another. An envelope's own refreshing mark just runs out.
+		 */
+		public void abandon() {
+			if(!envelope || cache instanceof ISupportLeases) {
+				releaseRefresh(cache, key);
+			}
+		}
+
+		protected void store(final Object val, final long start, final boolean loaded) {
+			if(val == null && loaded && negativeTTL > 0) {
+				logger.debug("Loader found nothing, caching tombstone.");
+				cache.put(key, new Tombstone(negativeTTL), negativeTTL);
+				if(!envelope) {
+					cache.remove(getDpKey(key));
+					releaseRefresh(cache, key);
+				} else if(cache instanceof ISupportLeases) {
+					releaseRefresh(cache, key);
+				}
+			} else if(envelope) {
+				if(val == null) {
+					logger.debug("Failed to get new data, clearing stale cache.");
+					cache.remove(key);
+				} else {
+					putEnvelope(cache, key, val, ttl, dogPileMultiplier, System.currentTimeMillis() - start);
+					logger.debug("Cache primed.");
+				}
+				if(cache instanceof ISupportLeases) {
+					releaseRefresh(cache, key);
+				}
+			} else if(val == null) {
 				logger.debug("Failed to get new data, clearing stale cache.");
 				cache.remove(key);
 				cache.remove(getDpKey(key));
-				cache.remove(getDpProgressKey(key));
+				releaseRefresh(cache, key);
 			} else {
 				cache.put(key, val, ttl*dogPileMultiplier);
 				cache.put(getDpKey(key),true,ttl);
-				cache.remove(getDpProgressKey(key));
+				releaseRefresh(cache, key);
 				logger.debug("Cache primed.");
 			}
 		}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2009 Victor Igumnov <victori@fabulously40.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.base.cache;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import net.spy.memcached.CachedData;
+
+/**
+ * Stored under the key of a value too large for one memcached item, the value itself is split over
+ * numbered chunk keys. The id is part of the chunk keys, so a reader holding an older manifest never
+ * mixes in chunks of a newer write, and length plus crc catch a write that only partly landed.
+ */
+public class ChunkManifest implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private final String key;
+	private final long id;
+	private final int chunks;
+	private final int length;
+	private final int flags;
+	private final long crc;
+
+	/**
+	 * @param key the encoded key the manifest is stored under.
+	 */
+	public ChunkManifest(final String key, final long id, final int chunks, final int length, final int flags,
+			final long crc) {
+		this.key = key;
+		this.id = id;
+		this.chunks = chunks;
+		this.length = length;
+		this.flags = flags;
+		this.crc = crc;
+	}
+
+	public static long crc(final byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		return crc.getValue();
+	}
+
+	/**
+	 * @return data cut into pieces of at most size bytes, in chunk order.
+	 */
+	public static List<byte[]> split(final byte[] data, final int size) {
+		List<byte[]> parts = new ArrayList<byte[]>((data.length + size - 1) / size);
+		for (int pos = 0; pos < data.length; pos += size) {
+			parts.add(Arrays.copyOfRange(data, pos, Math.min(data.length, pos + size)));
+		}
+		return parts;
+	}
+
+	/**
+	 * @param found chunks by chunk key, extra keys are ignored.
+	 * @return the reassembled bytes, or null when a chunk is missing or the result does not match
+	 * the manifest's length and crc.
+	 */
+	public byte[] join(final Map<String, CachedData> found) {
+		byte[] bytes = new byte[length];
+		int pos = 0;
+		for (int i = 0; i < chunks; i++) {
+			CachedData chunk = found.get(getChunkKey(i));
+			if (chunk == null || pos + chunk.getData().length > bytes.length) {
+				return null;
+			}
+			System.arraycopy(chunk.getData(), 0, bytes, pos, chunk.getData().length);
+			pos += chunk.getData().length;
+		}
+		if (pos != bytes.length || crc(bytes) != crc) {
+			return null;
+		}
+		return bytes;
+	}
+
+	public String getChunkKey(final int chunk) {
+		return KeyEncoder.encode(key + "#", Long.toHexString(id) + "_" + chunk);
+	}
+
+	public List<String> getChunkKeys() {
+		List<String> keys = new ArrayList<String>(chunks);
+		for (int i = 0; i < chunks; i++) {
+			keys.add(getChunkKey(i));
+		}
+		return keys;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public int getChunks() {
+		return chunks;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public int getFlags() {
+		return flags;
+	}
+
+	public long getCrc() {
+		return crc;
+	}
+}
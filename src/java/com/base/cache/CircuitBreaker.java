@@ -0,0 +1,251 @@
+/*
+ * Copyright 2009 Victor Igumnov <victori@fabulously40.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.base.cache;
+
+/**
+ * Stops calls to a tier that is failing or too slow. While CLOSED the outcome of the last windowSize
+ * calls is kept, once at least minimumCalls are in and the failure rate or the slow call rate crosses
+ * its threshold the breaker OPENs and rejects everything for openDuration. It then goes HALF_OPEN and
+ * lets halfOpenTrials calls through, closing if they all succeed in time and opening again otherwise.
+ * Callers must report every allowed call with onSuccess or onFailure.
+ */
+public class CircuitBreaker {
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private static final byte OK = 0;
+	private static final byte SLOW = 1;
+	private static final byte FAILED = 2;
+
+	private final byte[] window;
+	private int pos;
+	private int recorded;
+	private int failures;
+	private int slowCalls;
+
+	private volatile State state = State.CLOSED;
+	private long stateSince = System.currentTimeMillis();
+	private int trialsAllowed;
+	private int trialsPassed;
+
+	private double failureRateThreshold = 0.5;
+	private double slowCallRateThreshold = 0.8;
+	private long slowCallThreshold = 1000;
+	private int minimumCalls = 20;
+	private long openDuration = 5000;
+	private int halfOpenTrials = 3;
+
+	private long opened;
+	private long halfOpened;
+	private long closed;
+	private long rejected;
+
+	public CircuitBreaker() {
+		this(100);
+	}
+
+	public CircuitBreaker(final int windowSize) {
+		this.window = new byte[windowSize];
+	}
+
+	public boolean allowRequest() {
+		if (state == State.CLOSED) {
+			return true;
+		}
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			if (state == State.OPEN) {
+				if (now - stateSince < openDuration) {
+					rejected++;
+					return false;
+				}
+				transition(State.HALF_OPEN, now);
+			}
+			if (state == State.HALF_OPEN) {
+				// trials that never reported back must not keep the breaker half open forever.
+				if (trialsAllowed >= halfOpenTrials && now - stateSince >= openDuration) {
+					stateSince = now;
+					trialsAllowed = trialsPassed;
+				}
+				if (trialsAllowed >= halfOpenTrials) {
+					rejected++;
+					return false;
+				}
+				trialsAllowed++;
+			}
+			return true;
+		}
+	}
+
+	public void onSuccess(final long micros) {
+		boolean slow = micros >= slowCallThreshold * 1000;
+		synchronized (this) {
+			if (state == State.HALF_OPEN) {
+				if (slow) {
+					transition(State.OPEN, System.currentTimeMillis());
+				} else if (++trialsPassed >= halfOpenTrials) {
+					transition(State.CLOSED, System.currentTimeMillis());
+				}
+			} else if (state == State.CLOSED) {
+				record(slow ? SLOW : OK);
+			}
+		}
+	}
+
+	public synchronized void onFailure() {
+		if (state == State.HALF_OPEN) {
+			transition(State.OPEN, System.currentTimeMillis());
+		} else if (state == State.CLOSED) {
+			record(FAILED);
+		}
+	}
+
+	protected void record(final byte outcome) {
+		if (recorded == window.length) {
+			forget(window[pos]);
+		} else {
+			recorded++;
+		}
+		window[pos] = outcome;
+		pos = (pos + 1) % window.length;
+		if (outcome == FAILED) {
+			failures++;
+		} else if (outcome == SLOW) {
+			slowCalls++;
+		}
+		if (recorded >= minimumCalls && (failures >= failureRateThreshold * recorded
+				|| slowCalls >= slowCallRateThreshold * recorded)) {
+			transition(State.OPEN, System.currentTimeMillis());
+		}
+	}
+
+	private void forget(final byte outcome) {
+		if (outcome == FAILED) {
+			failures--;
+		} else if (outcome == SLOW) {
+			slowCalls--;
+		}
+	}
+
+	protected void transition(final State to, final long now) {
+		state = to;
+		stateSince = now;
+		trialsAllowed = 0;
+		trialsPassed = 0;
+		pos = 0;
+		recorded = 0;
+		failures = 0;
+		slowCalls = 0;
+		switch (to) {
+			case OPEN:
+				opened++;
+				break;
+			case HALF_OPEN:
+				halfOpened++;
+				break;
+			default:
+				closed++;
+		}
+	}
+
+	public synchronized void reset() {
+		transition(State.CLOSED, System.currentTimeMillis());
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public synchronized double getFailureRate() {
+		return recorded == 0 ? 0 : (double) failures / recorded;
+	}
+
+	public synchronized double getSlowCallRate() {
+		return recorded == 0 ? 0 : (double) slowCalls / recorded;
+	}
+
+	/**
+	 * @return how many times the breaker tripped open, including failed half open trials.
+	 */
+	public synchronized long getOpenedCount() {
+		return opened;
+	}
+
+	public synchronized long getHalfOpenedCount() {
+		return halfOpened;
+	}
+
+	public synchronized long getClosedCount() {
+		return closed;
+	}
+
+	public synchronized long getRejectedCount() {
+		return rejected;
+	}
+
+	public double getFailureRateThreshold() {
+		return failureRateThreshold;
+	}
+
+	public void setFailureRateThreshold(final double failureRateThreshold) {
+		this.failureRateThreshold = failureRateThreshold;
+	}
+
+	public double getSlowCallRateThreshold() {
+		return slowCallRateThreshold;
+	}
+
+	public void setSlowCallRateThreshold(final double slowCallRateThreshold) {
+		this.slowCallRateThreshold = slowCallRateThreshold;
+	}
+
+	public long getSlowCallThreshold() {
+		return slowCallThreshold;
+	}
+
+	/**
+	 * Calls taking at least this many milliseconds count as slow.
+	 */
+	public void setSlowCallThreshold(final long slowCallThreshold) {
+		this.slowCallThreshold = slowCallThreshold;
+	}
+
+	public int getMinimumCalls() {
+		return minimumCalls;
+	}
+
+	public void setMinimumCalls(final int minimumCalls) {
+		this.minimumCalls = minimumCalls;
+	}
+
+	public long getOpenDuration() {
+		return openDuration;
+	}
+
+	public void setOpenDuration(final long openDuration) {
+		this.openDuration = openDuration;
+	}
+
+	public int getHalfOpenTrials() {
+		return halfOpenTrials;
+	}
+
+	public void setHalfOpenTrials(final int halfOpenTrials) {
+		this.halfOpenTrials = halfOpenTrials;
+	}
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2009 Victor Igumnov <victori@fabulously40.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.base.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Polls the stats of every server in a pool in the background and keeps them in memory, so ICacheStat
+ * reads cost no round trips. Numeric stats are summed across the cluster, the per-server maps are kept
+ * as they came. Sums of non additive stats (pid, uptime, time...) mean nothing, read those per server.
+ * Polling starts with the first read, which waits for the first snapshot.
+ */
+public class ClusterStatsCollector {
+	private static transient Logger logger = LoggerFactory.getLogger(ClusterStatsCollector.class);
+	private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(final Runnable r) {
+			Thread t = new Thread(r, "tcache-stats");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	public static interface IStatsSource {
+		/**
+		 * @return the raw stats of every server, keyed by server.
+		 */
+		public Map<String, Map<String, String>> fetchStats();
+	}
+
+	private final IStatsSource source;
+	private final long interval;
+	private volatile Snapshot snapshot;
+	private ScheduledFuture<?> task;
+	private final AtomicLong polls = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	private static final class Snapshot {
+		final Map<String, Map<String, String>> servers;
+		final Map<String, Long> totals;
+		final long taken;
+
+		Snapshot(final Map<String, Map<String, String>> servers, final Map<String, Long> totals, final long taken) {
+			this.servers = servers;
+			this.totals = totals;
+			this.taken = taken;
+		}
+	}
+
+	/**
+	 * @param interval milliseconds between polls.
+	 */
+	public ClusterStatsCollector(final IStatsSource source, final long interval) {
+		this.source = source;
+		this.interval = interval;
+	}
+
+	public synchronized void start() {
+		if (task == null) {
+			task = scheduler.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					refresh();
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public synchronized void stop() {
+		if (task != null) {
+			task.cancel(false);
+			task = null;
+		}
+	}
+
+	/**
+	 * Polls right away, a failed poll keeps the previous snapshot.
+	 */
+	public void refresh() {
+		polls.incrementAndGet();
+		try {
+			Map<String, Map<String, String>> raw = source.fetchStats();
+			Map<String, Map<String, String>> servers = new HashMap<String, Map<String, String>>();
+			Map<String, Long> totals = new HashMap<String, Long>();
+			if (raw != null) {
+				for (Map.Entry<String, Map<String, String>> server : raw.entrySet()) {
+					servers.put(server.getKey(), Collections.unmodifiableMap(new HashMap<String, String>(server.getValue())));
+					for (Map.Entry<String, String> stat : server.getValue().entrySet()) {
+						try {
+							long value = Long.parseLong(stat.getValue().trim());
+							Long total = totals.get(stat.getKey());
+							totals.put(stat.getKey(), total == null ? value : total + value);
+						} catch (NumberFormatException e) {
+							// versions, rusage seconds... not summed.
+						}
+					}
+				}
+			}
+			snapshot = new Snapshot(Collections.unmodifiableMap(servers), totals, System.currentTimeMillis());
+		} catch (Exception e) {
+			failures.incrementAndGet();
+			logger.error("failed to poll stats", e);
+		}
+	}
+
+	protected Snapshot current() {
+		Snapshot s = snapshot;
+		if (s == null) {
+			synchronized (this) {
+				// only the very first read waits, after that a dead cluster just leaves no snapshot.
+				if (task == null) {
+					refresh();
+					start();
+				}
+			}
+			s = snapshot;
+		}
+		return s;
+	}
+
+	/**
+	 * @return the stat summed over all servers, 0 if no server reports it.
+	 */
+	public long getTotal(final String stat) {
+		Snapshot s = current();
+		if (s == null) {
+			return 0;
+		}
+		Long total = s.totals.get(stat);
+		return total == null ? 0 : total;
+	}
+
+	public Map<String, Map<String, String>> getServerStats() {
+		Snapshot s = current();
+		return s == null ? Collections.<String, Map<String, String>>emptyMap() : s.servers;
+	}
+
+	/**
+	 * @return when the current snapshot was taken, 0 if there is none yet.
+	 */
+	public long getLastUpdated() {
+		Snapshot s = snapshot;
+		return s == null ? 0 : s.taken;
+	}
+
+	public long getInterval() {
+		return interval;
+	}
+
+	public long getPollCount() {
+		return polls.get();
+	}
+
+	public long getFailedPollCount() {
+		return failures.get();
+	}
+}
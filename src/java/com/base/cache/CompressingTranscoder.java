@@ -0,0 +1,67 @@
+/*
+ * Copyright 2009 Victor Igumnov <victori@fabulously40.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.base.cache;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+
+/**
+ * spymemcached's SerializingTranscoder with its own gzip turned off and a Compression applied instead.
+ * Values it compressed carry the COMPRESSED_FLAG bit, values spymemcached compressed itself (flag 2)
+ * still decode as before.
+ */
+public class CompressingTranscoder extends SerializingTranscoder {
+	// spymemcached uses bits 0-1 and the type in bits 8-11, this one is free.
+	public static final int COMPRESSED_FLAG = 1 << 4;
+	private final Compression compression;
+	private final int maxSize;
+
+	public CompressingTranscoder(final Compression compression) {
+		this(compression, CachedData.MAX_SIZE);
+	}
+
+	public CompressingTranscoder(final Compression compression, final int maxSize) {
+		// the size limit is checked on the compressed value, a large value may still fit once compressed.
+		super(Integer.MAX_VALUE);
+		this.compression = compression;
+		this.maxSize = maxSize;
+		setCompressionThreshold(Integer.MAX_VALUE);
+	}
+
+	@Override
+	public CachedData encode(final Object o) {
+		CachedData plain = super.encode(o);
+		byte[] packed = compression.compress(plain.getData());
+		if (packed == null) {
+			return new CachedData(plain.getFlags(), plain.getData(), maxSize);
+		}
+		return new CachedData(plain.getFlags() | COMPRESSED_FLAG, packed, maxSize);
+	}
+
+	@Override
+	public Object decode(final CachedData d) {
+		if ((d.getFlags() & COMPRESSED_FLAG) == 0) {
+			return super.decode(d);
+		}
+		return super.decode(new CachedData(d.getFlags() & ~COMPRESSED_FLAG, compression.decompress(d.getData()),
+				getMaxSize()));
+	}
+
+	public Compression getCompression() {
+		return compression;
+	}
+}
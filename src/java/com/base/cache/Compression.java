@@ -0,0 +1,168 @@
+/*
+ * Copyright 2009 Victor Igumnov <victori@fabulously40.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.base.cache;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compresses values above a size threshold with a pluggable ICompressor, shared by the cache
+ * implementations. A compressed value starts with the id of the compressor that wrote it, so values
+ * written before a pool switched algorithm still read back. Values that do not shrink are left as they are.
+ */
+public class Compression {
+	public static final int DEFAULT_THRESHOLD = 4096;
+	private static final ICompressor[] KNOWN = { new GzipCompressor(), new DeflateCompressor() };
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	private final ICompressor compressor;
+	private final int threshold;
+
+	private final AtomicLong compressed = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong rawBytes = new AtomicLong();
+	private final AtomicLong compressedBytes = new AtomicLong();
+	private final AtomicLong compressNanos = new AtomicLong();
+	private final AtomicLong decompressed = new AtomicLong();
+	private final AtomicLong decompressNanos = new AtomicLong();
+
+	public Compression() {
+		this(new GzipCompressor(), DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * @param threshold values smaller than this many bytes are never compressed.
+	 */
+	public Compression(final ICompressor compressor, final int threshold) {
+		this.compressor = compressor;
+		this.threshold = threshold;
+	}
+
+	/**
+	 * @return the compressed value with its compressor id in front, null when the value should be stored as is.
+	 */
+	public byte[] compress(final byte[] data) {
+		if (data == null || data.length < threshold) {
+			skipped.incrementAndGet();
+			return null;
+		}
+		long start = cpuNanos();
+		try {
+			byte[] packed = compressor.compress(data);
+			compressNanos.addAndGet(cpuNanos() - start);
+			if (packed.length + 1 >= data.length) {
+				skipped.incrementAndGet();
+				return null;
+			}
+			byte[] ret = new byte[packed.length + 1];
+			ret[0] = compressor.getId();
+			System.arraycopy(packed, 0, ret, 1, packed.length);
+			compressed.incrementAndGet();
+			rawBytes.addAndGet(data.length);
+			compressedBytes.addAndGet(ret.length);
+			return ret;
+		} catch (IOException e) {
+			throw new RuntimeException("failed to compress", e);
+		}
+	}
+
+	public byte[] decompress(final byte[] data) {
+		long start = cpuNanos();
+		ICompressor c = forId(data[0]);
+		byte[] packed = new byte[data.length - 1];
+		System.arraycopy(data, 1, packed, 0, packed.length);
+		try {
+			byte[] ret = c.decompress(packed);
+			decompressed.incrementAndGet();
+			decompressNanos.addAndGet(cpuNanos() - start);
+			return ret;
+		} catch (IOException e) {
+			throw new RuntimeException("failed to decompress", e);
+		}
+	}
+
+	// cpu time of the calling thread, wall clock where the jvm cannot measure it.
+	private static long cpuNanos() {
+		if (THREADS.isCurrentThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled()) {
+			return THREADS.getCurrentThreadCpuTime();
+		}
+		return System.nanoTime();
+	}
+
+	protected ICompressor forId(final byte id) {
+		if (compressor.getId() == id) {
+			return compressor;
+		}
+		for (ICompressor c : KNOWN) {
+			if (c.getId() == id) {
+				return c;
+			}
+		}
+		throw new IllegalArgumentException("unknown compressor " + id);
+	}
+
+	public ICompressor getCompressor() {
+		return compressor;
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * @return compressed size over original size of the values that were compressed, 1 before any.
+	 */
+	public double getRatio() {
+		long raw = rawBytes.get();
+		return raw == 0 ? 1 : (double) compressedBytes.get() / raw;
+	}
+
+	public long getCompressedCount() {
+		return compressed.get();
+	}
+
+	/**
+	 * @return values left uncompressed, under the threshold or not shrinking.
+	 */
+	public long getSkippedCount() {
+		return skipped.get();
+	}
+
+	public long getBytesSaved() {
+		return rawBytes.get() - compressedBytes.get();
+	}
+
+	/**
+	 * @return cpu time spent compressing.
+	 */
+	public long getCompressMillis() {
+		return compressNanos.get() / 1000000;
+	}
+
+	public long getDecompressedCount() {
+		return decompressed.get();
+	}
+
+	/**
+	 * @return cpu time spent decompressing.
+	 */
+	public long getDecompressMillis() {
+		return decompressNanos.get() / 1000000;
+	}
+}
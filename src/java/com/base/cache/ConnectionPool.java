@@ -0,0 +1,490 @@
+/*
+ * Copyright 2009 Victor Igumnov <victori@fabulously40.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.base.cache;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded JDBC connection pool. Handed out connections are proxies: close() returns the connection, and
+ * prepareStatement(sql) is served from a per-connection cache whose statements survive close().
+ * Idle connections are reused most recent first, so the ones left at the tail age out.
+ */
+public class ConnectionPool {
+	private static transient Logger logger = LoggerFactory.getLogger(ConnectionPool.class);
+	private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(final Runnable r) {
+			Thread t = new Thread(r, "tcache-db-pool");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	public static interface IConnectionSource {
+		public Connection open() throws SQLException;
+	}
+
+	private final IConnectionSource source;
+	private final DBPoolConfig config;
+	private final Semaphore permits;
+	private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<PooledConnection>();
+	private final AtomicInteger open = new AtomicInteger();
+	private final AtomicInteger active = new AtomicInteger();
+	private final LatencyTracker waitLatency = new LatencyTracker();
+	private final AtomicLong acquired = new AtomicLong();
+	private final AtomicLong waitMicros = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong evicted = new AtomicLong();
+	private final AtomicLong validationFailures = new AtomicLong();
+	private final AtomicLong statementHits = new AtomicLong();
+	private final AtomicLong statementMisses = new AtomicLong();
+	private volatile boolean closed;
+	private ScheduledFuture<?> maintenance;
+
+	public ConnectionPool(final IConnectionSource source, final DBPoolConfig config) {
+		this.source = source;
+		this.config = config;
+		this.permits = new Semaphore(config.getMaxSize(), true);
+	}
+
+	/**
+	 * @return a connection to close() when done, which hands it back to the pool.
+	 * @throws SQLException when none frees up within the acquire timeout.
+	 */
+	public Connection getConnection() throws SQLException {
+		if (closed) {
+			throw new SQLException("connection pool is closed");
+		}
+		start();
+		long begin = System.nanoTime();
+		try {
+			if (!permits.tryAcquire(config.getAcquireTimeout(), TimeUnit.MILLISECONDS)) {
+				timeouts.incrementAndGet();
+				throw new SQLException("no connection available within " + config.getAcquireTimeout() + "ms");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("interrupted waiting for a connection");
+		}
+		long waited = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - begin);
+		acquired.incrementAndGet();
+		waitMicros.addAndGet(waited);
+		waitLatency.record(waited);
+		try {
+			PooledConnection pc = take();
+			active.incrementAndGet();
+			return pc.lease();
+		} catch (SQLException e) {
+			permits.release();
+			throw e;
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	private PooledConnection take() throws SQLException {
+		PooledConnection pc;
+		while ((pc = idle.pollFirst()) != null) {
+			if (validate(pc)) {
+				return pc;
+			}
+			validationFailures.incrementAndGet();
+			discard(pc);
+		}
+		return connect();
+	}
+
+	private PooledConnection connect() throws SQLException {
+		Connection c = source.open();
+		open.incrementAndGet();
+		created.incrementAndGet();
+		return new PooledConnection(c);
+	}
+
+	protected boolean validate(final PooledConnection pc) {
+		if (System.currentTimeMillis() - pc.lastUsed < config.getValidationInterval()) {
+			return true;
+		}
+		try {
+			if (config.getValidationQuery() == null) {
+				return pc.conn.isValid(config.getValidationTimeout());
+			}
+			Statement st = pc.conn.createStatement();
+			try {
+				st.setQueryTimeout(config.getValidationTimeout());
+				st.execute(config.getValidationQuery());
+				return true;
+			} finally {
+				st.close();
+			}
+		} catch (Exception e) {
+			logger.warn("connection failed validation", e);
+			return false;
+		}
+	}
+
+	private void release(final PooledConnection pc) {
+		active.decrementAndGet();
+		pc.lastUsed = System.currentTimeMillis();
+		if (closed || !pc.reset()) {
+			discard(pc);
+		} else {
+			idle.offerFirst(pc);
+		}
+		permits.release();
+	}
+
+	private void discard(final PooledConnection pc) {
+		open.decrementAndGet();
+		pc.destroy();
+	}
+
+	protected synchronized void start() {
+		if (maintenance != null || closed) {
+			return;
+		}
+		maintenance = scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				maintain();
+			}
+		}, 0, config.getMaintenanceInterval(), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Closes connections idle past the idle timeout, oldest first, then opens connections up to minSize.
+	 */
+	protected void maintain() {
+		long cutoff = System.currentTimeMillis() - config.getIdleTimeout();
+		Iterator<PooledConnection> it = idle.descendingIterator();
+		while (it.hasNext() && open.get() > config.getMinSize()) {
+			PooledConnection pc = it.next();
+			// whoever removes it from the deque owns it, a racing take() may already have.
+			if (pc.lastUsed < cutoff && idle.remove(pc)) {
+				evicted.incrementAndGet();
+				discard(pc);
+			}
+		}
+		try {
+			while (!closed && open.get() < config.getMinSize()) {
+				idle.offerLast(connect());
+			}
+		} catch (Exception e) {
+			logger.error("failed to open a pooled connection", e);
+		}
+	}
+
+	/**
+	 * Closes the idle connections now, the ones in use are closed as they come back.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			if (maintenance != null) {
+				maintenance.cancel(false);
+			}
+		}
+		PooledConnection pc;
+		while ((pc = idle.pollFirst()) != null) {
+			discard(pc);
+		}
+	}
+
+	public int getActiveCount() {
+		return active.get();
+	}
+
+	public int getIdleCount() {
+		return idle.size();
+	}
+
+	public int getOpenCount() {
+		return open.get();
+	}
+
+	/**
+	 * @return share of the maximum pool size in use, 0 to 1.
+	 */
+	public double getUtilization() {
+		return (double) active.get() / config.getMaxSize();
+	}
+
+	public long getAcquireCount() {
+		return acquired.get();
+	}
+
+	public long getAverageWaitMicros() {
+		long n = acquired.get();
+		return n == 0 ? 0 : waitMicros.get() / n;
+	}
+
+	/**
+	 * @return recent wait times for a connection, in microseconds.
+	 */
+	public LatencyTracker getWaitLatency() {
+		return waitLatency;
+	}
+
+	public long getTimeoutCount() {
+		return timeouts.get();
+	}
+
+	public long getCreatedCount() {
+		return created.get();
+	}
+
+	public long getEvictedCount() {
+		return evicted.get();
+	}
+
+	public long getValidationFailureCount() {
+		return validationFailures.get();
+	}
+
+	public long getStatementCacheHits() {
+		return statementHits.get();
+	}
+
+	public long getStatementCacheMisses() {
+		return statementMisses.get();
+	}
+
+	public Map<String, String> getStats() {
+		Map<String, String> stats = new HashMap<String, String>();
+		stats.put("pool_active", String.valueOf(getActiveCount()));
+		stats.put("pool_idle", String.valueOf(getIdleCount()));
+		stats.put("pool_open", String.valueOf(getOpenCount()));
+		stats.put("pool_utilization", String.valueOf(getUtilization()));
+		stats.put("pool_acquires", String.valueOf(getAcquireCount()));
+		stats.put("pool_wait_avg_micros", String.valueOf(getAverageWaitMicros()));
+		stats.put("pool_wait_p99_micros", String.valueOf(waitLatency.getPercentile(99)));
+		stats.put("pool_timeouts", String.valueOf(getTimeoutCount()));
+		stats.put("pool_created", String.valueOf(getCreatedCount()));
+		stats.put("pool_evicted", String.valueOf(getEvictedCount()));
+		stats.put("pool_validation_failures", String.valueOf(getValidationFailureCount()));
+		stats.put("statement_cache_hits", String.valueOf(getStatementCacheHits()));
+		stats.put("statement_cache_misses", String.valueOf(getStatementCacheMisses()));
+		return stats;
+	}
+
+	// SQLState class 08 is a connection exception, the connection is not worth keeping after one.
+	private static boolean isFatal(final Throwable t) {
+		return t instanceof SQLException && ((SQLException) t).getSQLState() != null
+				&& ((SQLException) t).getSQLState().startsWith("08");
+	}
+
+	private static Object invoke(final PooledConnection pc, final Object target, final Method method,
+			final Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			if (isFatal(e.getCause())) {
+				pc.broken = true;
+			}
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * One physical connection and its statement cache, only ever used by the thread holding its lease.
+	 */
+	protected class PooledConnection {
+		final Connection conn;
+		volatile long lastUsed = System.currentTimeMillis();
+		boolean broken;
+		boolean dirty;
+		Connection handle;
+		private final LinkedHashMap<String, CachedStatement> statements;
+
+		PooledConnection(final Connection conn) {
+			this.conn = conn;
+			this.statements = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(final Map.Entry<String, CachedStatement> eldest) {
+					if (size() > config.getStatementCacheSize()) {
+						eldest.getValue().destroy();
+						return true;
+					}
+					return false;
+				}
+			};
+		}
+
+		Connection lease() {
+			handle = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+					new Class<?>[] { Connection.class }, new Lease(this));
+			return handle;
+		}
+
+		PreparedStatement prepare(final String sql) throws SQLException {
+			CachedStatement cached = statements.get(sql);
+			if (cached != null) {
+				statementHits.incrementAndGet();
+				return cached.proxy;
+			}
+			statementMisses.incrementAndGet();
+			try {
+				cached = new CachedStatement(this, conn.prepareStatement(sql));
+			} catch (SQLException e) {
+				broken |= isFatal(e);
+				throw e;
+			}
+			statements.put(sql, cached);
+			return cached.proxy;
+		}
+
+		/**
+		 * @return false when the connection should not go back to the pool.
+		 */
+		boolean reset() {
+			if (broken) {
+				return false;
+			}
+			try {
+				if (dirty) {
+					if (!conn.getAutoCommit()) {
+						conn.rollback();
+						conn.setAutoCommit(true);
+					}
+					dirty = false;
+				}
+				return !conn.isClosed();
+			} catch (SQLException e) {
+				return false;
+			}
+		}
+
+		void destroy() {
+			for (CachedStatement cached : statements.values()) {
+				cached.destroy();
+			}
+			statements.clear();
+			try {
+				conn.close();
+			} catch (Exception e) {
+				logger.warn("failed to close connection", e);
+			}
+		}
+	}
+
+	// a handle is only good until close(), a late call on it must not touch the next borrower's connection.
+	private class Lease implements InvocationHandler {
+		private final PooledConnection pc;
+		private boolean released;
+
+		Lease(final PooledConnection pc) {
+			this.pc = pc;
+		}
+
+		public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+			String name = method.getName();
+			if ("close".equals(name)) {
+				if (!released) {
+					released = true;
+					release(pc);
+				}
+				return null;
+			}
+			if ("isClosed".equals(name)) {
+				return released || pc.conn.isClosed();
+			}
+			if ("equals".equals(name)) {
+				return proxy == args[0];
+			}
+			if ("hashCode".equals(name)) {
+				return System.identityHashCode(proxy);
+			}
+			if (released) {
+				throw new SQLException("connection was returned to the pool");
+			}
+			if ("prepareStatement".equals(name) && args.length == 1 && config.getStatementCacheSize() > 0) {
+				return pc.prepare((String) args[0]);
+			}
+			if ("setAutoCommit".equals(name) || "setReadOnly".equals(name) || "setTransactionIsolation".equals(name)
+					|| "setCatalog".equals(name)) {
+				pc.dirty = true;
+			}
+			return ConnectionPool.invoke(pc, pc.conn, method, args);
+		}
+	}
+
+	// close() only clears the parameters and any batch, the statement stays prepared for the next caller.
+	private static class CachedStatement implements InvocationHandler {
+		private final PooledConnection pc;
+		private final PreparedStatement ps;
+		final PreparedStatement proxy;
+
+		CachedStatement(final PooledConnection pc, final PreparedStatement ps) {
+			this.pc = pc;
+			this.ps = ps;
+			this.proxy = (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+					new Class<?>[] { PreparedStatement.class }, this);
+		}
+
+		public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+			String name = method.getName();
+			if ("close".equals(name)) {
+				ps.clearParameters();
+				ps.clearBatch();
+				return null;
+			}
+			if ("getConnection".equals(name)) {
+				return pc.handle;
+			}
+			if ("equals".equals(name)) {
+				return proxy == args[0];
+			}
+			if ("hashCode".equals(name)) {
+				return System.identityHashCode(proxy);
+			}
+			return ConnectionPool.invoke(pc, ps, method, args);
+		}
+
+		void destroy() {
+			try {
+				ps.close();
+			} catch (Exception e) {
+				logger.warn("failed to close statement", e);
+			}
+		}
+	}
+}
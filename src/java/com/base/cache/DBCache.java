@@ -26,19 +26,82 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-public class DBCache implements ICache, IDistributedCache {
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class DBCache implements ICache, IDistributedCache, INonBlockingCache, ISupportLeases, ISupportKeyScan {
+	private static transient Logger logger = LoggerFactory.getLogger(DBCache.class);
+	private static final ScheduledExecutorService purgeScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(final Runnable r) {
+			Thread t = new Thread(r, "tcache-db-purge");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	// flushes get their own thread, a long purge must not hold them up.
+	private static final ScheduledExecutorService flushScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(final Runnable r) {
+			Thread t = new Thread(r, "tcache-db-flush");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	protected static final int MAX_IN_KEYS = 500;
 	private String jdbcUrl;
 	private String userName;
 	private String password;
 	private String poolName;
+	private final ConnectionPool pool;
+	private final SQLDialect dialect;
+	private BlockingCacheAdapter asyncAdapter;
+	private volatile Compression compression;
+	// compressed rows start with this instead of java serialization's 0xACED.
+	protected static final byte[] COMPRESSED_MAGIC = { 'T', 'Z' };
+	private static final Compression DECODER = new Compression();
+	private ScheduledFuture<?> purgeTask;
+	private volatile boolean writeBehind;
+	private final ConcurrentHashMap<String,PendingWrite> pending = new ConcurrentHashMap<String,PendingWrite>();
+	private final Object flushLock = new Object();
+	private final AtomicBoolean flushRequested = new AtomicBoolean();
+	// enqueue holds the read side, disconnect takes the write side to close the queue before its last flush.
+	private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+	private boolean closed;
+	private ScheduledFuture<?> flushTask;
+	private final LatencyTracker flushLatency = new LatencyTracker();
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong flushedWrites = new AtomicLong();
+	private final AtomicLong coalescedWrites = new AtomicLong();
+	private final AtomicLong failedFlushes = new AtomicLong();
+	private final AtomicLong rejectedWrites = new AtomicLong();
+	private final AtomicLong purgedRows = new AtomicLong();
+	private final AtomicLong purgeRuns = new AtomicLong();
 
 	public DBCache(final String jdbcUrl, final String userName, final String password, final String driverName,
 			final String poolName) {
+		this(jdbcUrl, userName, password, driverName, poolName, new DBPoolConfig());
+	}
+
+	public DBCache(final String jdbcUrl, final String userName, final String password, final String driverName,
+			final String poolName, final DBPoolConfig poolConfig) {
 
 		try {
 			Class.forName(driverName).newInstance();
@@ -50,86 +113,155 @@ public class DBCache implements ICache, IDistributedCache {
 		this.userName = userName;
 		this.password = password;
 		this.poolName = poolName;
+		this.dialect = createDialect();
+		this.pool = new ConnectionPool(new ConnectionPool.IConnectionSource() {
+			public Connection open() throws SQLException {
+				return openConnection();
+			}
+		}, poolConfig);
+		this.asyncAdapter = new BlockingCacheAdapter(this, poolName + "-db", getAsyncThreads(), getAsyncQueueSize());
 		createTables();
+		startPurger();
 	}
 
 	public void put(final String key, final Object value, final int ttl) {
+		if (writeBehind) {
+			enqueue(key, PendingWrite.put(value, ttl, this));
+			return;
+		}
 		runSQL(new ISQLExecute() {
 			public Object execute(final Connection conn) throws SQLException {
-				PreparedStatement ps = conn.prepareStatement("select cache_key from " + getTableStore()
-						+ " where cache_key=?");
-				ps.setString(1, key);
-				ResultSet rs = ps.executeQuery();
-				if (rs.next()) {
-					PreparedStatement updt = conn.prepareStatement("update " + getTableStore()
-							+ " set cache_data=?,are_bytes=?,updated=now() where cache_key=?;");
-					if (value instanceof byte[]) {
-						updt.setBytes(1, (byte[]) value);
-						updt.setBoolean(2, true);
-					} else {
-						updt.setBytes(1, serialize(value));
-						updt.setBoolean(2, false);
-					}
-					updt.setString(3, key);
-					updt.execute();
-				} else {
-					PreparedStatement insrt = conn.prepareStatement("insert into " + getTableStore()
-							+ " (cache_key,cache_data,created,updated,are_bytes) values (?,?,now(),now(),?);");
-					insrt.setString(1, key);
-					if (value instanceof byte[]) {
-						insrt.setBytes(2, (byte[]) value);
-						insrt.setBoolean(3, true);
-					} else {
-						insrt.setBytes(2, serialize(value));
-						insrt.setBoolean(3, false);
-					}
-					insrt.execute();
-				}
+				store(conn, key, value, ttl);
 				return null;
 			}
 		});
 	}
 
+	protected void store(final Connection conn, final String key, final Object value, final int ttl)
+			throws SQLException {
+		PreparedStatement ps = conn.prepareStatement(dialect.upsert(getTableStore()));
+		try {
+			bindValue(ps, key, value, ttl);
+			ps.execute();
+		} finally {
+			close(ps);
+		}
+	}
+
+	protected void bindValue(final PreparedStatement ps, final String key, final Object value, final int ttl)
+			throws SQLException {
+		ps.setString(1, key);
+		ps.setLong(4, expiresAt(ttl));
+		if (value instanceof byte[]) {
+			ps.setBytes(2, (byte[]) value);
+			ps.setBoolean(3, true);
+		} else {
+			ps.setBytes(2, serialize(value));
+			ps.setBoolean(3, false);
+		}
+	}
+
+	/**
+	 * A put or remove waiting to be flushed. Values are serialized when queued, later changes to the
+	 * object do not leak into the row.
+	 */
+	protected static final class PendingWrite {
+		final byte[] data;
+		final boolean areBytes;
+		final long expiresAt;
+
+		private PendingWrite(final byte[] data, final boolean areBytes, final long expiresAt) {
+			this.data = data;
+			this.areBytes = areBytes;
+			this.expiresAt = expiresAt;
+		}
+
+		static PendingWrite put(final Object value, final int ttl, final DBCache cache) {
+			if (value instanceof byte[]) {
+				return new PendingWrite((byte[]) value, true, expiresAt(ttl));
+			}
+			return new PendingWrite(cache.serialize(value), false, expiresAt(ttl));
+		}
+
+		static PendingWrite remove() {
+			return new PendingWrite(null, false, 0);
+		}
+
+		boolean isRemove() {
+			return data == null;
+		}
+
+		boolean isLive() {
+			return data != null && (expiresAt == 0 || expiresAt > System.currentTimeMillis());
+		}
+	}
+
+	protected SQLDialect createDialect() {
+		return SQLDialect.forUrl(jdbcUrl);
+	}
+
+	public SQLDialect getDialect() {
+		return dialect;
+	}
+
 	public void put(final String key, final Object value) {
 		put(key, value, 0);
 	}
 
+	/**
+	 * @return when a value stored now with ttl seconds expires, in epoch millis. 0 never expires.
+	 */
+	protected static long expiresAt(final int ttl) {
+		return ttl > 0 ? System.currentTimeMillis() + ttl * 1000L : 0;
+	}
+
 	public String getTableStore() {
 		return poolName + "_store";
 	}
 
 	public void clear() {
-		runSQL(new ISQLExecute() {
-			public Object execute(final Connection conn) throws SQLException {
-				PreparedStatement ps = conn.prepareStatement("truncate " + getTableStore() + ";");
-				ps.execute();
-				return null;
-			}
-		});
+		// a flush in flight would write its rows back after the truncate.
+		synchronized (flushLock) {
+			pending.clear();
+			runSQL(new ISQLExecute() {
+				public Object execute(final Connection conn) throws SQLException {
+					PreparedStatement ps = conn.prepareStatement(dialect.truncate(getTableStore()));
+					try {
+						ps.execute();
+					} finally {
+						close(ps);
+					}
+					return null;
+				}
+			});
+		}
+	}
+
+	public String getTableLease() {
+		return poolName + "_lease";
 	}
 
-	// CREATE TABLE fab40r2_store (cache_key varchar(255) not null unique primary key,cache_data bytea,created timestamp without time zone,updated timestamp without time zone);
 	protected void createTables() {
 		runSQL(new ISQLExecute() {
 			public Object execute(final Connection conn) throws SQLException {
-				String ctable = null;
-
-				if (jdbcUrl.toLowerCase().matches(".*mysql.*")) {
-					ctable = "CREATE TABLE "
-						+ getTableStore()
-						+ " (cache_key varchar(255) not null unique primary key,cache_data mediumblob,created timestamp,"
-						+ "updated timestamp,are_bytes boolean not null);";
-				} else {
-					ctable = "CREATE TABLE "
-						+ getTableStore()
-						+ " (cache_key varchar(255) not null unique primary key,cache_data bytea,created timestamp without time zone,"
-						+ "updated timestamp without time zone,are_bytes boolean not null);";
+				// the tables may have been created up front by a user that has the rights to.
+				try {
+					executeDDL(conn, dialect.createStoreTable(getTableStore()));
+				} catch (SQLException e) {
+					//e.printStackTrace();
 				}
-
-				PreparedStatement ps = conn.prepareStatement(ctable);
+				// tables from before expiry get the column, both fail harmlessly once they exist.
 				try {
-					ps.execute();
-				} catch (Exception e) {
+					executeDDL(conn, dialect.addExpiresColumn(getTableStore()));
+				} catch (SQLException e) {
+				}
+				try {
+					executeDDL(conn, dialect.createExpiresIndex(getTableStore()));
+				} catch (SQLException e) {
+				}
+				try {
+					executeDDL(conn, dialect.createLeaseTable(getTableLease()));
+				} catch (SQLException e) {
 					//e.printStackTrace();
 				}
 				return null;
@@ -138,64 +270,696 @@ public class DBCache implements ICache, IDistributedCache {
 	}
 
 	public Object get(final String key) {
+		PendingWrite w = pending.get(key);
+		if (w != null) {
+			return w.isLive() ? decode(w) : null;
+		}
 		return runSQL(new ISQLExecute() {
 			public Object execute(final Connection conn) throws SQLException {
 				PreparedStatement ps = conn.prepareStatement("select cache_data,are_bytes from " + getTableStore()
-						+ " where cache_key=?");
-				ps.setString(1, key);
-				ResultSet rs = ps.executeQuery();
-				if (rs.next()) {
-					if (rs.getBoolean("are_bytes")) {
-						return rs.getBytes("cache_data");
+						+ " where cache_key=? and (expires_at=0 or expires_at>?)");
+				ResultSet rs = null;
+				try {
+					ps.setString(1, key);
+					ps.setLong(2, System.currentTimeMillis());
+					rs = ps.executeQuery();
+					if (rs.next()) {
+						if (rs.getBoolean("are_bytes")) {
+							return rs.getBytes("cache_data");
+						} else {
+							return deserialize(rs.getBytes("cache_data"));
+						}
 					} else {
-						return deserialize(rs.getBytes("cache_data"));
+						return null;
+					}
+				} finally {
+					close(rs);
+					close(ps);
+				}
+			}
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	public Map<String,Object> getMulti(final Collection<String> keys) {
+		if (keys.isEmpty()) {
+			return new HashMap<String,Object>();
+		}
+		final Map<String,Object> found = new HashMap<String,Object>(keys.size() * 2);
+		final List<String> keyList = new ArrayList<String>(keys.size());
+		for (String key : keys) {
+			PendingWrite w = pending.get(key);
+			if (w == null) {
+				keyList.add(key);
+			} else if (w.isLive()) {
+				found.put(key, decode(w));
+			}
+		}
+		if (keyList.isEmpty()) {
+			return found;
+		}
+		return (Map<String,Object>) runSQL(new ISQLExecute() {
+			public Object execute(final Connection conn) throws SQLException {
+				// one IN query per chunk, keeps us under the driver's bind parameter limits.
+				for (int i = 0; i < keyList.size(); i += MAX_IN_KEYS) {
+					List<String> chunk = keyList.subList(i, Math.min(i + MAX_IN_KEYS, keyList.size()));
+					PreparedStatement ps = conn.prepareStatement("select cache_key,cache_data,are_bytes from "
+							+ getTableStore() + " where cache_key in (" + inClause(chunk.size()) + ") and (expires_at=0 or expires_at>?)");
+					ResultSet rs = null;
+					try {
+						int idx = 1;
+						for (String key : chunk) {
+							ps.setString(idx++, key);
+						}
+						ps.setLong(idx, System.currentTimeMillis());
+						rs = ps.executeQuery();
+						while (rs.next()) {
+							if (rs.getBoolean("are_bytes")) {
+								found.put(rs.getString("cache_key"), rs.getBytes("cache_data"));
+							} else {
+								found.put(rs.getString("cache_key"), deserialize(rs.getBytes("cache_data")));
+							}
+						}
+					} finally {
+						close(rs);
+						close(ps);
 					}
-				} else {
-					return null;
 				}
+				return found;
 			}
 		});
 	}
 
+	public void putMulti(final Map<String,Object> values, final int ttl) {
+		if (values.isEmpty()) {
+			return;
+		}
+		if (writeBehind) {
+			for (Map.Entry<String,Object> entry : values.entrySet()) {
+				enqueue(entry.getKey(), PendingWrite.put(entry.getValue(), ttl, this));
+			}
+			return;
+		}
+		runSQL(new ISQLExecute() {
+			public Object execute(final Connection conn) throws SQLException {
+				// one batch of upserts, a single round trip on drivers that send batches together.
+				PreparedStatement ps = conn.prepareStatement(dialect.upsert(getTableStore()));
+				try {
+					for (Map.Entry<String,Object> entry : values.entrySet()) {
+						bindValue(ps, entry.getKey(), entry.getValue(), ttl);
+						ps.addBatch();
+					}
+					ps.executeBatch();
+				} finally {
+					close(ps);
+				}
+				return null;
+			}
+		});
+	}
+
+	public void removeMulti(final Collection<String> keys) {
+		if (keys.isEmpty()) {
+			return;
+		}
+		if (writeBehind) {
+			for (String key : keys) {
+				enqueue(key, PendingWrite.remove());
+			}
+			return;
+		}
+		runSQL(new ISQLExecute() {
+			public Object execute(final Connection conn) throws SQLException {
+				List<String> keyList = new ArrayList<String>(keys);
+				for (int i = 0; i < keyList.size(); i += MAX_IN_KEYS) {
+					List<String> chunk = keyList.subList(i, Math.min(i + MAX_IN_KEYS, keyList.size()));
+					PreparedStatement ps = conn.prepareStatement("delete from " + getTableStore()
+							+ " where cache_key in (" + inClause(chunk.size()) + ")");
+					try {
+						int idx = 1;
+						for (String key : chunk) {
+							ps.setString(idx++, key);
+						}
+						ps.execute();
+					} finally {
+						close(ps);
+					}
+				}
+				return null;
+			}
+		});
+	}
+
+	protected static String inClause(final int size) {
+		StringBuilder sb = new StringBuilder(size * 2);
+		for (int i = 0; i < size; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append('?');
+		}
+		return sb.toString();
+	}
+
 	@SuppressWarnings("unchecked")
 	public List<String> getKeys() {
 		return (List<String>) runSQL(new ISQLExecute() {
 			public Object execute(final Connection conn) throws SQLException {
-				PreparedStatement ps = conn.prepareStatement("select cache_key from " + getTableStore());
-				ResultSet rs = ps.executeQuery();
+				PreparedStatement ps = conn.prepareStatement("select cache_key from " + getTableStore()
+						+ " where expires_at=0 or expires_at>?");
+				ResultSet rs = null;
 				List<String> ids = new ArrayList<String>();
-				while (rs.next()) {
-					ids.add(rs.getString("cache_key"));
+				try {
+					ps.setLong(1, System.currentTimeMillis());
+					rs = ps.executeQuery();
+					while (rs.next()) {
+						String key = rs.getString("cache_key");
+						if (!pending.containsKey(key)) {
+							ids.add(key);
+						}
+					}
+				} finally {
+					close(rs);
+					close(ps);
+				}
+				for (Map.Entry<String,PendingWrite> entry : pending.entrySet()) {
+					if (entry.getValue().isLive()) {
+						ids.add(entry.getKey());
+					}
 				}
 				return ids;
 			}
 		});
 	}
 
+	/**
+	 * Keyset pagination on the primary key, a page costs the same wherever the scan is. In write-behind mode
+	 * the queue is flushed first so the scan sees it.
+	 */
+	public KeyPage scanKeys(final String prefix, final String token, final int pageSize) {
+		KeyPage.checkPageSize(pageSize);
+		if (!pending.isEmpty()) {
+			flush();
+		}
+		return (KeyPage) runSQL(new ISQLExecute() {
+			public Object execute(final Connection conn) throws SQLException {
+				String end = SQLDialect.prefixEnd(prefix);
+				PreparedStatement ps = conn.prepareStatement(dialect.scanKeys(getTableStore(), end != null));
+				ResultSet rs = null;
+				List<String> keys = new ArrayList<String>(pageSize);
+				boolean more = false;
+				try {
+					int idx = 1;
+					ps.setString(idx++, token == null ? "" : token);
+					ps.setString(idx++, prefix == null ? "" : prefix);
+					if (end != null) {
+						ps.setString(idx++, end);
+					}
+					ps.setString(idx++, prefix == null ? "%" : escapeLike(prefix) + "%");
+					ps.setLong(idx++, System.currentTimeMillis());
+					// one row past the page tells whether there is another.
+					ps.setInt(idx, pageSize + 1);
+					ps.setFetchSize(pageSize + 1);
+					rs = ps.executeQuery();
+					while (rs.next()) {
+						if (keys.size() == pageSize) {
+							more = true;
+							break;
+						}
+						keys.add(rs.getString("cache_key"));
+					}
+				} finally {
+					close(rs);
+					close(ps);
+				}
+				return new KeyPage(keys, more ? keys.get(keys.size() - 1) : null);
+			}
+		});
+	}
+
+	protected static String escapeLike(final String s) {
+		return s.replace("!", "!!").replace("%", "!%").replace("_", "!_");
+	}
+
 	public boolean keyExists(final String key) {
+		PendingWrite w = pending.get(key);
+		if (w != null) {
+			return w.isLive();
+		}
 		return (Boolean) runSQL(new ISQLExecute() {
 			public Object execute(final Connection conn) throws SQLException {
 				PreparedStatement ps = conn.prepareStatement("select cache_key from " + getTableStore()
-						+ " where cache_key=?");
-				ps.setString(1, key);
-				ResultSet rs = ps.executeQuery();
-				return rs.next();
+						+ " where cache_key=? and (expires_at=0 or expires_at>?)");
+				ResultSet rs = null;
+				try {
+					ps.setString(1, key);
+					ps.setLong(2, System.currentTimeMillis());
+					rs = ps.executeQuery();
+					return rs.next();
+				} finally {
+					close(rs);
+					close(ps);
+				}
 			}
 		});
 	}
 
 	public void remove(final String key) {
+		if (writeBehind) {
+			enqueue(key, PendingWrite.remove());
+			return;
+		}
 		runSQL(new ISQLExecute() {
 			public Object execute(final Connection conn) throws SQLException {
 				PreparedStatement ps = conn.prepareStatement("delete from " + getTableStore() + " where cache_key=?");
-				ps.setString(1, key);
-				ps.execute();
+				try {
+					ps.setString(1, key);
+					ps.execute();
+				} finally {
+					close(ps);
+				}
+				return null;
+			}
+		});
+	}
+
+	// async calls go through a bounded executor, the threads are only started on first use.
+	protected int getAsyncThreads() {
+		return 10;
+	}
+
+	protected int getAsyncQueueSize() {
+		return 1000;
+	}
+
+	public Compression getCompression() {
+		return compression;
+	}
+
+	/**
+	 * Compresses serialized values, raw byte[] values are stored as they are. Rows written without it
+	 * still read back, null turns it off.
+	 */
+	public void setCompression(final Compression compression) {
+		this.compression = compression;
+	}
+
+	public CompletionStage<Object> getAsync(final String key) {
+		return asyncAdapter.getAsync(key);
+	}
+
+	public CompletionStage<Map<String,Object>> getMultiAsync(final Collection<String> keys) {
+		return asyncAdapter.getMultiAsync(keys);
+	}
+
+	public CompletionStage<Void> putAsync(final String key, final Object value, final int ttl) {
+		return asyncAdapter.putAsync(key, value, ttl);
+	}
+
+	public CompletionStage<Void> removeAsync(final String key) {
+		return asyncAdapter.removeAsync(key);
+	}
+
+	public boolean acquireLease(final String key, final int ttl) {
+		return (Boolean) runSQL(new ISQLExecute() {
+			public Object execute(final Connection conn) throws SQLException {
+				long now = System.currentTimeMillis();
+				// drop an expired holder first, then whoever inserts the row owns the lease.
+				PreparedStatement del = conn.prepareStatement("delete from " + getTableLease()
+						+ " where lease_key=? and expires_at<?");
+				try {
+					del.setString(1, key);
+					del.setLong(2, now);
+					del.execute();
+				} finally {
+					close(del);
+				}
+
+				PreparedStatement ps = conn.prepareStatement(dialect.insertLease(getTableLease()));
+				try {
+					ps.setString(1, key);
+					ps.setLong(2, now + ttl * 1000L);
+					return ps.executeUpdate() == 1;
+				} catch (SQLException e) {
+					// integrity constraint violation, someone else holds the lease.
+					if (e.getSQLState() != null && e.getSQLState().startsWith("23")) {
+						return false;
+					}
+					throw e;
+				} finally {
+					close(ps);
+				}
+			}
+		});
+	}
+
+	public void releaseLease(final String key) {
+		runSQL(new ISQLExecute() {
+			public Object execute(final Connection conn) throws SQLException {
+				PreparedStatement ps = conn.prepareStatement("delete from " + getTableLease() + " where lease_key=?");
+				try {
+					ps.setString(1, key);
+					ps.execute();
+				} finally {
+					close(ps);
+				}
 				return null;
 			}
 		});
 	}
 
 	public void disconnect() {
+		synchronized (this) {
+			if (purgeTask != null) {
+				purgeTask.cancel(false);
+			}
+			if (flushTask != null) {
+				flushTask.cancel(false);
+			}
+		}
+		asyncAdapter.shutdown();
+		if (!asyncAdapter.awaitTermination(getShutdownTimeout(), TimeUnit.MILLISECONDS)) {
+			logger.warn("async calls to " + getTableStore() + " still running at disconnect");
+		}
+		// no write gets queued after this, so the flush below sees everything that was accepted.
+		closeLock.writeLock().lock();
+		try {
+			closed = true;
+		} finally {
+			closeLock.writeLock().unlock();
+		}
+		if (!pending.isEmpty()) {
+			try {
+				flush();
+			} catch (RuntimeException e) {
+				logger.error(pending.size() + " pending writes to " + getTableStore() + " were lost", e);
+			}
+		}
+		pool.close();
+	}
+
+	/**
+	 * How long disconnect() waits for queued async calls before the final flush, in milliseconds.
+	 */
+	protected long getShutdownTimeout() {
+		return 10000;
+	}
+
+	public boolean isWriteBehind() {
+		return writeBehind;
+	}
+
+	/**
+	 * In write-behind mode puts and removes are queued, only the last write per key is kept, and the queue
+	 * is written as JDBC batches in one transaction every getWriteBehindDelay() or once
+	 * getWriteBehindBatchSize() keys are pending. Reads see queued writes. Turning it off flushes the queue.
+	 */
+	public void setWriteBehind(final boolean writeBehind) {
+		synchronized (this) {
+			this.writeBehind = writeBehind;
+			if (writeBehind && flushTask == null) {
+				flushTask = flushScheduler.scheduleWithFixedDelay(new Runnable() {
+					public void run() {
+						flushQuietly();
+					}
+				}, getWriteBehindDelay(), getWriteBehindDelay(), TimeUnit.MILLISECONDS);
+			} else if (!writeBehind && flushTask != null) {
+				flushTask.cancel(false);
+				flushTask = null;
+			}
+		}
+		if (!writeBehind) {
+			flush();
+		}
+	}
+
+	protected int getWriteBehindBatchSize() {
+		return 500;
+	}
+
+	/**
+	 * Longest a write waits in the queue, in milliseconds.
+	 */
+	protected long getWriteBehindDelay() {
+		return 1000;
+	}
+
+	/**
+	 * Past this many pending keys a writer must flush before its write is queued. If that flush fails the
+	 * write is rejected, so a database that is down cannot grow the queue without bound.
+	 */
+	protected int getWriteBehindMaxPending() {
+		return getWriteBehindBatchSize() * 20;
+	}
+
+	/**
+	 * @throws IllegalStateException after disconnect(), a write queued then would never be flushed.
+	 * @throws RuntimeException from flush() when the queue is full and cannot be flushed.
+	 */
+	protected void enqueue(final String key, final PendingWrite write) {
+		closeLock.readLock().lock();
+		try {
+			if (closed) {
+				throw new IllegalStateException("write to " + getTableStore() + " after disconnect");
+			}
+			// a key that is already queued only replaces its write and does not grow the queue.
+			if (pending.size() >= getWriteBehindMaxPending() && !pending.containsKey(key)) {
+				try {
+					flush();
+				} catch (RuntimeException e) {
+					rejectedWrites.incrementAndGet();
+					throw e;
+				}
+			}
+			if (pending.put(key, write) != null) {
+				coalescedWrites.incrementAndGet();
+			}
+		} finally {
+			closeLock.readLock().unlock();
+		}
+		if (pending.size() >= getWriteBehindBatchSize() && flushRequested.compareAndSet(false, true)) {
+			flushScheduler.execute(new Runnable() {
+				public void run() {
+					flushRequested.set(false);
+					flushQuietly();
+				}
+			});
+		}
+	}
+
+	private void flushQuietly() {
+		try {
+			flush();
+		} catch (Exception e) {
+			logger.error("failed to flush pending writes to " + getTableStore(), e);
+		}
+	}
+
+	/**
+	 * Writes every queued put and remove in one transaction. A write queued for the same key meanwhile
+	 * stays queued for the next flush, and on failure everything stays queued.
+	 * @return writes flushed.
+	 */
+	public int flush() {
+		synchronized (flushLock) {
+			if (pending.isEmpty()) {
+				return 0;
+			}
+			final Map<String,PendingWrite> batch = new HashMap<String,PendingWrite>(pending);
+			long start = System.nanoTime();
+			try {
+				runSQL(new ISQLExecute() {
+					public Object execute(final Connection conn) throws SQLException {
+						writeBatch(conn, batch);
+						return null;
+					}
+				});
+			} catch (RuntimeException e) {
+				failedFlushes.incrementAndGet();
+				throw e;
+			}
+			flushLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+			for (Map.Entry<String,PendingWrite> entry : batch.entrySet()) {
+				pending.remove(entry.getKey(), entry.getValue());
+			}
+			flushes.incrementAndGet();
+			flushedWrites.addAndGet(batch.size());
+			return batch.size();
+		}
+	}
+
+	protected void writeBatch(final Connection conn, final Map<String,PendingWrite> batch) throws SQLException {
+		conn.setAutoCommit(false);
+		PreparedStatement upsert = null;
+		PreparedStatement delete = null;
+		try {
+			int puts = 0;
+			int removes = 0;
+			for (Map.Entry<String,PendingWrite> entry : batch.entrySet()) {
+				PendingWrite w = entry.getValue();
+				if (w.isRemove()) {
+					if (delete == null) {
+						delete = conn.prepareStatement("delete from " + getTableStore() + " where cache_key=?");
+					}
+					delete.setString(1, entry.getKey());
+					delete.addBatch();
+					if (++removes % getWriteBehindBatchSize() == 0) {
+						delete.executeBatch();
+					}
+				} else {
+					if (upsert == null) {
+						upsert = conn.prepareStatement(dialect.upsert(getTableStore()));
+					}
+					upsert.setString(1, entry.getKey());
+					upsert.setBytes(2, w.data);
+					upsert.setBoolean(3, w.areBytes);
+					upsert.setLong(4, w.expiresAt);
+					upsert.addBatch();
+					if (++puts % getWriteBehindBatchSize() == 0) {
+						upsert.executeBatch();
+					}
+				}
+			}
+			if (puts % getWriteBehindBatchSize() != 0) {
+				upsert.executeBatch();
+			}
+			if (removes % getWriteBehindBatchSize() != 0) {
+				delete.executeBatch();
+			}
+			conn.commit();
+		} catch (SQLException e) {
+			conn.rollback();
+			throw e;
+		} finally {
+			close(upsert);
+			close(delete);
+			conn.setAutoCommit(true);
+		}
+	}
+
+	protected Object decode(final PendingWrite w) {
+		return w.areBytes ? w.data : deserialize(w.data);
+	}
+
+	public int getPendingWriteCount() {
+		return pending.size();
+	}
+
+	public long getFlushCount() {
+		return flushes.get();
+	}
+
+	public long getFlushedWriteCount() {
+		return flushedWrites.get();
+	}
+
+	/**
+	 * @return writes replaced by a later write to the same key before they were flushed.
+	 */
+	public long getCoalescedWriteCount() {
+		return coalescedWrites.get();
+	}
+
+	public long getFailedFlushCount() {
+		return failedFlushes.get();
+	}
+
+	/**
+	 * @return writes refused because the queue was full and could not be flushed.
+	 */
+	public long getRejectedWriteCount() {
+		return rejectedWrites.get();
+	}
+
+	public long getAverageBatchSize() {
+		long n = flushes.get();
+		return n == 0 ? 0 : flushedWrites.get() / n;
+	}
+
+	/**
+	 * @return recent flush times, in microseconds.
+	 */
+	public LatencyTracker getFlushLatency() {
+		return flushLatency;
+	}
+
+	protected synchronized void startPurger() {
+		if (getPurgeInterval() <= 0) {
+			return;
+		}
+		purgeTask = purgeScheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					purgeExpired();
+				} catch (Exception e) {
+					logger.error("failed to purge expired rows from " + getTableStore(), e);
+				}
+			}
+		}, getPurgeInterval(), getPurgeInterval(), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Deletes expired rows a batch at a time, each batch its own short statement so no lock is held for
+	 * long. Stops at the first partial batch or after getPurgeMaxBatches().
+	 * @return rows deleted.
+	 */
+	public long purgeExpired() throws InterruptedException {
+		purgeRuns.incrementAndGet();
+		long total = 0;
+		for (int i = 0; i < getPurgeMaxBatches(); i++) {
+			if (i > 0) {
+				// the rate limit, at most a batch per delay.
+				Thread.sleep(getPurgeBatchDelay());
+			}
+			int deleted = (Integer) runSQL(new ISQLExecute() {
+				public Object execute(final Connection conn) throws SQLException {
+					PreparedStatement ps = conn.prepareStatement(dialect.purgeExpired(getTableStore()));
+					try {
+						ps.setLong(1, System.currentTimeMillis());
+						ps.setInt(2, getPurgeBatchSize());
+						return ps.executeUpdate();
+					} finally {
+						close(ps);
+					}
+				}
+			});
+			total += deleted;
+			purgedRows.addAndGet(deleted);
+			if (deleted < getPurgeBatchSize()) {
+				break;
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * How often expired rows are purged in the background, in milliseconds. 0 turns the purger off.
+	 */
+	protected long getPurgeInterval() {
+		return 60000;
+	}
+
+	protected int getPurgeBatchSize() {
+		return 500;
+	}
+
+	/**
+	 * Pause between purge batches, in milliseconds.
+	 */
+	protected long getPurgeBatchDelay() {
+		return 100;
+	}
+
+	protected int getPurgeMaxBatches() {
+		return 1000;
+	}
+
+	public long getPurgedRowCount() {
+		return purgedRows.get();
+	}
+
+	public long getPurgeRunCount() {
+		return purgeRuns.get();
 	}
 
 	public String getPoolName() {
@@ -207,10 +971,32 @@ public class DBCache implements ICache, IDistributedCache {
 	}
 
 	public Map<String,String> stats() {
-		return new HashMap<String,String>();
+		Map<String,String> stats = pool.getStats();
+		stats.put("purged_rows", String.valueOf(getPurgedRowCount()));
+		stats.put("purge_runs", String.valueOf(getPurgeRunCount()));
+		stats.put("write_behind_pending", String.valueOf(getPendingWriteCount()));
+		stats.put("write_behind_flushes", String.valueOf(getFlushCount()));
+		stats.put("write_behind_avg_batch", String.valueOf(getAverageBatchSize()));
+		stats.put("write_behind_coalesced", String.valueOf(getCoalescedWriteCount()));
+		stats.put("write_behind_failed_flushes", String.valueOf(getFailedFlushCount()));
+		stats.put("write_behind_rejected", String.valueOf(getRejectedWriteCount()));
+		stats.put("write_behind_flush_p99_micros", String.valueOf(flushLatency.getPercentile(99)));
+		return stats;
 	}
 
+	public ConnectionPool getConnectionPool() {
+		return pool;
+	}
+
+	/**
+	 * @return a pooled connection, closing it hands it back.
+	 */
 	protected Connection getConnection() throws SQLException {
+		return pool.getConnection();
+	}
+
+	// opens the physical connections behind the pool.
+	protected Connection openConnection() throws SQLException {
 		Connection c = DriverManager.getConnection(jdbcUrl, userName, password);
 		c.setAutoCommit(true);
 		return c;
@@ -220,7 +1006,7 @@ public class DBCache implements ICache, IDistributedCache {
 		Connection c = null;
 		try {
 			c = getConnection();
-			return exec.execute(getConnection());
+			return exec.execute(c);
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new RuntimeException("Failed to execute SQL");
@@ -239,6 +1025,36 @@ public class DBCache implements ICache, IDistributedCache {
 		public Object execute(Connection conn) throws SQLException;
 	}
 
+	protected static void executeDDL(final Connection conn, final String sql) throws SQLException {
+		PreparedStatement ps = conn.prepareStatement(sql);
+		try {
+			ps.execute();
+		} finally {
+			close(ps);
+		}
+	}
+
+	// a pooled statement only resets on close, a plain one is released. Either way a failure here is not the caller's.
+	protected static void close(final Statement s) {
+		if (s != null) {
+			try {
+				s.close();
+			} catch (SQLException e) {
+				logger.warn("failed to close statement", e);
+			}
+		}
+	}
+
+	protected static void close(final ResultSet rs) {
+		if (rs != null) {
+			try {
+				rs.close();
+			} catch (SQLException e) {
+				logger.warn("failed to close result set", e);
+			}
+		}
+	}
+
 	public Object deserialize(final byte[] bytes) {
 		if (bytes == null) {
 			return null;
@@ -246,6 +1062,10 @@ public class DBCache implements ICache, IDistributedCache {
 		ClassLoadingObjectInputStream ois = null;
 		try {
 			ByteArrayInputStream bs = new ByteArrayInputStream(bytes);
+			if (bytes.length > COMPRESSED_MAGIC.length && bytes[0] == COMPRESSED_MAGIC[0] && bytes[1] == COMPRESSED_MAGIC[1]) {
+				Compression c = compression != null ? compression : DECODER;
+				bs = new ByteArrayInputStream(c.decompress(Arrays.copyOfRange(bytes, COMPRESSED_MAGIC.length, bytes.length)));
+			}
 			ois = new ClassLoadingObjectInputStream(bs);
 			Object o = ois.readObject();
 			if (o != null) {
@@ -271,7 +1091,15 @@ public class DBCache implements ICache, IDistributedCache {
 			oos = new ObjectOutputStream(bs);
 			oos.writeObject(o);
 			oos.flush();
-			return bs.toByteArray();
+			Compression c = compression;
+			byte[] packed = c != null ? c.compress(bs.toByteArray()) : null;
+			if (packed == null) {
+				return bs.toByteArray();
+			}
+			byte[] ret = new byte[packed.length + COMPRESSED_MAGIC.length];
+			System.arraycopy(COMPRESSED_MAGIC, 0, ret, 0, COMPRESSED_MAGIC.length);
+			System.arraycopy(packed, 0, ret, COMPRESSED_MAGIC.length, packed.length);
+			return ret;
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new RuntimeException("failed to serialize");
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2009 Victor Igumnov <victori@fabulously40.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.base.cache;
+
+/**
+ * Connection pool settings for DBCache, read when the pool is created.
+ */
+public class DBPoolConfig {
+	private int minSize = 1;
+	private int maxSize = 10;
+	private long acquireTimeout = 5000;
+	private long idleTimeout = 300000;
+	private long validationInterval = 5000;
+	private int validationTimeout = 2;
+	private String validationQuery;
+	private int statementCacheSize = 64;
+	private long maintenanceInterval = 30000;
+
+	public int getMinSize() {
+		return minSize;
+	}
+
+	/**
+	 * Connections kept open even when idle.
+	 */
+	public void setMinSize(final int minSize) {
+		this.minSize = minSize;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Connections in use at once, callers beyond it wait for one to be returned.
+	 */
+	public void setMaxSize(final int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	public long getAcquireTimeout() {
+		return acquireTimeout;
+	}
+
+	/**
+	 * How long a caller waits for a free connection before failing, in milliseconds.
+	 */
+	public void setAcquireTimeout(final long acquireTimeout) {
+		this.acquireTimeout = acquireTimeout;
+	}
+
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * Connections idle longer than this are closed, down to minSize, in milliseconds.
+	 */
+	public void setIdleTimeout(final long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	public long getValidationInterval() {
+		return validationInterval;
+	}
+
+	/**
+	 * A connection idle longer than this is validated before it is handed out, in milliseconds.
+	 * 0 validates on every checkout.
+	 */
+	public void setValidationInterval(final long validationInterval) {
+		this.validationInterval = validationInterval;
+	}
+
+	public int getValidationTimeout() {
+		return validationTimeout;
+	}
+
+	/**
+	 * In seconds, as Connection.isValid() takes it.
+	 */
+	public void setValidationTimeout(final int validationTimeout) {
+		this.validationTimeout = validationTimeout;
+	}
+
+	public String getValidationQuery() {
+		return validationQuery;
+	}
+
+	/**
+	 * Query run to validate a connection, for drivers without Connection.isValid(). Null uses isValid().
+	 */
+	public void setValidationQuery(final String validationQuery) {
+		this.validationQuery = validationQuery;
+	}
+
+	public int getStatementCacheSize() {
+		return statementCacheSize;
+	}
+
+	/**
+	 * Prepared statements kept open per connection, least recently used first out. 0 turns the cache off.
+	 */
+	public void setStatementCacheSize(final int statementCacheSize) {
+		this.statementCacheSize = statementCacheSize;
+	}
+
+	public long getMaintenanceInterval() {
+		return maintenanceInterval;
+	}
+
+	/**
+	 * How often idle connections are evicted and the pool topped up to minSize, in milliseconds.
+	 */
+	public void setMaintenanceInterval(final long maintenanceInterval) {
+		this.maintenanceInterval = maintenanceInterval;
+	}
+}
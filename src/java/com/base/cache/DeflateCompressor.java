@@ -0,0 +1,89 @@
+/*
+ * Copyright 2009 Victor Igumnov <victori@fabulously40.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.base.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Raw deflate without the gzip header and checksum, with a tunable level to trade CPU for bytes.
+ */
+public class DeflateCompressor implements ICompressor {
+	public static final byte ID = 2;
+	private static final byte[] PAD = new byte[1];
+	private final int level;
+
+	public DeflateCompressor() {
+		this(Deflater.DEFAULT_COMPRESSION);
+	}
+
+	public DeflateCompressor(final int level) {
+		this.level = level;
+	}
+
+	public byte getId() {
+		return ID;
+	}
+
+	public byte[] compress(final byte[] data) throws IOException {
+		Deflater deflater = new Deflater(level, true);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			ByteArrayOutputStream bs = new ByteArrayOutputStream(data.length / 2 + 32);
+			byte[] buf = new byte[8192];
+			while (!deflater.finished()) {
+				int n = deflater.deflate(buf);
+				bs.write(buf, 0, n);
+			}
+			return bs.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	public byte[] decompress(final byte[] data) throws IOException {
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(data);
+			ByteArrayOutputStream bs = new ByteArrayOutputStream(data.length * 4);
+			byte[] buf = new byte[8192];
+			boolean padded = false;
+			while (!inflater.finished()) {
+				int n = inflater.inflate(buf);
+				if (n == 0 && inflater.needsInput() && !padded) {
+					// nowrap inflate may need a dummy byte past the end to finish, see Inflater(boolean).
+					padded = true;
+					inflater.setInput(PAD);
+					continue;
+				}
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IOException("truncated deflate data");
+				}
+				bs.write(buf, 0, n);
+			}
+			return bs.toByteArray();
+		} catch (DataFormatException e) {
+			throw new IOException(e);
+		} finally {
+			inflater.end();
+		}
+	}
+}
@@ -16,7 +16,11 @@
 
 package com.base.cache;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
 
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheException;
@@ -25,9 +29,10 @@ import net.sf.ehcache.Element;
 import net.sf.ehcache.Status;
 import net.sf.ehcache.extension.CacheExtension;
 
-public class Ehcache implements ICache, ICacheStat {
+public class Ehcache implements ICache, ICacheStat, INonBlockingCache, ISupportLeases {
 	private CacheManager cacheManager;
 	private String cacheName;
+	private BlockingCacheAdapter asyncAdapter;
 
 	protected static final String DEFAULT_NAME = "defaultCache";
 
@@ -42,6 +47,7 @@ public class Ehcache implements ICache, ICacheStat {
 
 	public Ehcache(final String cacheName,final int ttl,final int elSize,final boolean disk,final int expireThreadSeconds) {
 		this.cacheName = cacheName;
+		this.asyncAdapter = new BlockingCacheAdapter(this, cacheName + "-ehcache", getAsyncThreads(), getAsyncQueueSize());
 		cacheManager = CacheManager.getInstance();
 		if (cacheManager.getCache(cacheName) == null) {
 			Cache cache = new Cache(cacheName, elSize, disk, false, ttl, 0);
@@ -124,6 +130,41 @@ public class Ehcache implements ICache, ICacheStat {
 		}
 	}
 
+	public Map<String,Object> getMulti(final Collection<String> keys) {
+		// look the cache up once for the whole batch.
+		Cache cache = getCache();
+		Map<String,Object> found = new HashMap<String,Object>(keys.size() * 2);
+		for (String key : keys) {
+			Element el = cache.get(key);
+			if (el != null && el.getObjectValue() != null) {
+				found.put(key, el.getObjectValue());
+			}
+		}
+		return found;
+	}
+
+	public void putMulti(final Map<String,Object> values, final int ttl) {
+		Cache cache = getCache();
+		for (Map.Entry<String,Object> entry : values.entrySet()) {
+			Element el = new Element(entry.getKey(), entry.getValue());
+			if (ttl != 0) {
+				el.setTimeToLive(ttl);
+			}
+			cache.put(el);
+		}
+	}
+
+	public void removeMulti(final Collection<String> keys) {
+		Cache cache = getCache();
+		for (String key : keys) {
+			cache.remove(key);
+		}
+	}
+
+	/**
+	 * Ehcache 2.1 only hands out copies of its key array, so there is no paged scan here, a scan would copy
+	 * every key for every page.
+	 */
 	@SuppressWarnings("unchecked")
 	public List<String> getKeys() {
 		return getCache().getKeys();
@@ -156,6 +197,48 @@ public class Ehcache implements ICache, ICacheStat {
 		getCache().put(el);
 	}
 
+	// async calls go through a bounded executor, the threads are only started on first use.
+	protected int getAsyncThreads() {
+		return 2;
+	}
+
+	protected int getAsyncQueueSize() {
+		return 1000;
+	}
+
+	public CompletionStage<Object> getAsync(final String key) {
+		return asyncAdapter.getAsync(key);
+	}
+
+	public CompletionStage<Map<String,Object>> getMultiAsync(final Collection<String> keys) {
+		return asyncAdapter.getMultiAsync(keys);
+	}
+
+	public CompletionStage<Void> putAsync(final String key, final Object value, final int ttl) {
+		return asyncAdapter.putAsync(key, value, ttl);
+	}
+
+	public CompletionStage<Void> removeAsync(final String key) {
+		return asyncAdapter.removeAsync(key);
+	}
+
+	public boolean acquireLease(final String key, final int ttl) {
+		Element el = new Element(key, Boolean.TRUE);
+		if (ttl != 0) {
+			el.setTimeToLive(ttl);
+		}
+		Element held = getCache().putIfAbsent(el);
+		if (held != null && held.isExpired()) {
+			// an expired lease that was not evicted yet, take it over only if nobody beat us to it.
+			return getCache().replace(held, el);
+		}
+		return held == null;
+	}
+
+	public void releaseLease(final String key) {
+		getCache().remove(key);
+	}
+
 	public long getCacheBytes() {
 		return getCache().calculateInMemorySize();
 	}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2009 Victor Igumnov <victori@fabulously40.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.base.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Turns plain Futures (spymemcached has no completion callbacks) into CompletableFutures.
+ * One daemon thread polls every pending future, so callers never park waiting on a result.
+ * Dependent stages run on that thread, use the *Async variants for anything heavy.
+ */
+public class FutureCompleter implements Runnable {
+	private static transient Logger logger = LoggerFactory.getLogger(FutureCompleter.class);
+	private static final long POLL_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+	private static final FutureCompleter instance = new FutureCompleter("tcache-future-completer");
+
+	private final Queue<Pending<?>> incoming = new ConcurrentLinkedQueue<Pending<?>>();
+	private final List<Pending<?>> pending = new ArrayList<Pending<?>>();
+	private final Thread thread;
+
+	protected FutureCompleter(final String name) {
+		thread = new Thread(this);
+		thread.setName(name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public static FutureCompleter getInstance() {
+		return instance;
+	}
+
+	public <T> CompletableFuture<T> complete(final Future<T> future, final long timeout, final TimeUnit unit) {
+		CompletableFuture<T> ret = new CompletableFuture<T>();
+		if (future.isDone()) {
+			done(future, ret);
+			return ret;
+		}
+		incoming.add(new Pending<T>(future, ret, System.nanoTime() + unit.toNanos(timeout)));
+		LockSupport.unpark(thread);
+		return ret;
+	}
+
+	public int getPendingCount() {
+		return pending.size() + incoming.size();
+	}
+
+	public void run() {
+		while (true) {
+			try {
+				Pending<?> p;
+				while ((p = incoming.poll()) != null) {
+					pending.add(p);
+				}
+				if (pending.isEmpty()) {
+					LockSupport.park(this);
+					continue;
+				}
+				long now = System.nanoTime();
+				for (Iterator<Pending<?>> i = pending.iterator(); i.hasNext();) {
+					if (i.next().check(now)) {
+						i.remove();
+					}
+				}
+				if (!pending.isEmpty()) {
+					LockSupport.parkNanos(this, POLL_NANOS);
+				}
+			} catch (Throwable t) {
+				logger.error("future completer failed", t);
+			}
+		}
+	}
+
+	protected static <T> void done(final Future<T> future, final CompletableFuture<T> target) {
+		try {
+			target.complete(future.get());
+		} catch (Throwable t) {
+			target.completeExceptionally(t);
+		}
+	}
+
+	protected static class Pending<T> {
+		private final Future<T> future;
+		private final CompletableFuture<T> target;
+		private final long deadline;
+
+		public Pending(final Future<T> future, final CompletableFuture<T> target, final long deadline) {
+			this.future = future;
+			this.target = target;
+			this.deadline = deadline;
+		}
+
+		public boolean check(final long now) {
+			if (future.isDone()) {
+				done(future, target);
+				return true;
+			}
+			if (now - deadline > 0) {
+				future.cancel(false);
+				target.completeExceptionally(new TimeoutException("timed out waiting for cache operation"));
+				return true;
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2009 Victor Igumnov <victori@fabulously40.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.base.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class GzipCompressor implements ICompressor {
+	public static final byte ID = 1;
+
+	public byte getId() {
+		return ID;
+	}
+
+	public byte[] compress(final byte[] data) throws IOException {
+		ByteArrayOutputStream bs = new ByteArrayOutputStream(data.length / 2 + 32);
+		GZIPOutputStream gz = new GZIPOutputStream(bs);
+		gz.write(data);
+		gz.close();
+		return bs.toByteArray();
+	}
+
+	public byte[] decompress(final byte[] data) throws IOException {
+		GZIPInputStream gz = new GZIPInputStream(new ByteArrayInputStream(data));
+		ByteArrayOutputStream bs = new ByteArrayOutputStream(data.length * 4);
+		byte[] buf = new byte[8192];
+		int n;
+		while ((n = gz.read(buf)) > 0) {
+			bs.write(buf, 0, n);
+		}
+		gz.close();
+		return bs.toByteArray();
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2009 Victor Igumnov <victori@fabulously40.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.base.cache;
+
+/**
+ * H2, embedded or in-memory, for running DBCache locally and in tests.
+ */
+public class H2Dialect extends SQLDialect {
+
+	@Override
+	protected String getBlobType() {
+		return "blob";
+	}
+
+	@Override
+	protected String getTimestampType() {
+		return "timestamp";
+	}
+
+	// merge replaces the whole row, created is reset along with the value.
+	@Override
+	public String upsert(final String table) {
+		return "merge into " + table + " (cache_key,cache_data,created,updated,are_bytes,expires_at) key (cache_key)"
+				+ " values (?,?,now(),now(),?,?)";
+	}
+
+	@Override
+	public String insertLease(final String table) {
+		return "insert into " + table + " (lease_key,expires_at) values (?,?)";
+	}
+}
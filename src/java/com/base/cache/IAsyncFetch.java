@@ -1,5 +1,9 @@
 package com.base.cache;
 
+/**
+ * @deprecated still runs on a refresh thread, implement ICompletableFetch instead.
+ */
+@Deprecated
 public interface IAsyncFetch extends IFetch {
 	public Object getObjectAsync();
 }
@@ -16,7 +16,9 @@
 
 package com.base.cache;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 public interface ICache {
 	public Object get(String key);
@@ -24,6 +26,17 @@ public interface ICache {
 	public void clear();
 	public void remove(String key);
 	public boolean keyExists(String key);
+	/**
+	 * Loads every key at once, caches that implement ISupportKeyScan can page through them instead.
+	 */
 	public List<String> getKeys();
 	public void put(String key, Object value);
+
+	/**
+	 * Fetch several keys at once, backends use their native multi-key path.
+	 * @return map of key to value, misses are left out.
+	 */
+	public Map<String,Object> getMulti(Collection<String> keys);
+	public void putMulti(Map<String,Object> values, int ttl);
+	public void removeMulti(Collection<String> keys);
 }
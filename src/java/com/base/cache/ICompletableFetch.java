@@ -0,0 +1,27 @@
+/*
+ * Copyright 2009 Victor Igumnov <victori@fabulously40.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.base.cache;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Loader that can fetch without holding a thread. Background refreshes start the stage and write
+ * the cache when it completes; callers that need the value right away still go through getObject().
+ */
+public interface ICompletableFetch extends IFetch {
+	public CompletionStage<Object> fetchAsync();
+}
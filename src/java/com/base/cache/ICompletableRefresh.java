@@ -0,0 +1,27 @@
+/*
+ * Copyright 2009 Victor Igumnov <victori@fabulously40.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.base.cache;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Refresh that finishes after run() returns. RefreshScheduler starts it with refreshAsync() and treats
+ * the key as refreshing until the stage completes, a failed stage counts as a failed refresh.
+ */
+public interface ICompletableRefresh extends Runnable {
+	public CompletionStage<Void> refreshAsync();
+}
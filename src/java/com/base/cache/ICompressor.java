@@ -0,0 +1,29 @@
+/*
+ * Copyright 2009 Victor Igumnov <victori@fabulously40.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.base.cache;
+
+import java.io.IOException;
+
+/**
+ * A compression algorithm for cached values. The id is stored with every compressed value, so it must
+ * never change once values have been written with it.
+ */
+public interface ICompressor {
+	public byte getId();
+	public byte[] compress(byte[] data) throws IOException;
+	public byte[] decompress(byte[] data) throws IOException;
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2009 Victor Igumnov <victori@fabulously40.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.base.cache;
+
+import java.util.List;
+
+/**
+ * Tracks which keys a node has seen so distributed caches can answer getKeys() without keeping every key forever.
+ */
+public interface IKeyIndex {
+	public static enum Accuracy {
+		/** nothing is tracked, getKeys() is always empty. */
+		NONE,
+		/** getKeys() lists the most recently written keys seen by this node that have not expired, never all of them. */
+		RECENT,
+		/** keys cannot be listed, mightContain() answers with false positives but no false negatives. */
+		MEMBERSHIP
+	}
+
+	/** a key was written with the given ttl in seconds, 0 for no expiry. */
+	public void add(String key, int ttl);
+
+	public void remove(String key);
+
+	public void clear();
+
+	public boolean mightContain(String key);
+
+	public List<String> getKeys();
+
+	/**
+	 * @see ISupportKeyScan#scanKeys(String, String, int)
+	 */
+	public KeyPage scanKeys(String prefix, String token, int pageSize);
+
+	public Accuracy getAccuracy();
+
+	public long size();
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2009 Victor Igumnov <victori@fabulously40.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.base.cache;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Non-blocking variant of the cache API, none of these park the calling thread.
+ * A failed call may complete its stage exceptionally, as BlockingCacheAdapter does, or already as a miss.
+ * Callers that want a miss, a read of null or an empty map, map the failure themselves.
+ */
+public interface INonBlockingCache extends ICache {
+	public CompletionStage<Object> getAsync(String key);
+	public CompletionStage<Map<String,Object>> getMultiAsync(Collection<String> keys);
+	public CompletionStage<Void> putAsync(String key, Object value, int ttl);
+	public CompletionStage<Void> removeAsync(String key);
+}
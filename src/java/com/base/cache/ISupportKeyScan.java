@@ -0,0 +1,30 @@
+/*
+ * Copyright 2009 Victor Igumnov <victori@fabulously40.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.base.cache;
+
+/**
+ * Caches that can list their keys a page at a time, so walking a large cache never holds every key at once.
+ */
+public interface ISupportKeyScan {
+	/**
+	 * @param prefix only keys starting with it, null for all.
+	 * @param token where the previous page ended, null to start at the beginning.
+	 * @return up to pageSize keys in ascending order.
+	 * @throws IllegalArgumentException when pageSize is below 1.
+	 */
+	public KeyPage scanKeys(String prefix, String token, int pageSize);
+}
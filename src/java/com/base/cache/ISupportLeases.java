@@ -0,0 +1,29 @@
+/*
+ * Copyright 2009 Victor Igumnov <victori@fabulously40.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.base.cache;
+
+/**
+ * Caches that can take a lease atomically (memcached add, insert-if-absent...), so exactly one
+ * node in the cluster wins it.
+ */
+public interface ISupportLeases {
+	/**
+	 * @return true if the lease was free and is now held by the caller for ttl seconds.
+	 */
+	public boolean acquireLease(String key, int ttl);
+	public void releaseLease(String key);
+}
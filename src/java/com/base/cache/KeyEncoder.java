@@ -0,0 +1,130 @@
+/*
+ * Copyright 2009 Victor Igumnov <victori@fabulously40.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.base.cache;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Builds memcached keys in one pass: drops spaces, '&', '!' and control characters, turns ':' into '#'.
+ * Keys that would go over memcached's 250 byte limit keep a readable head and get a SHA-1 of the
+ * full key appended, instead of failing on the server.
+ */
+public final class KeyEncoder {
+	public static final int MAX_KEY_BYTES = 250;
+	// room for the "#" and 40 hex chars of the digest.
+	private static final int HASHED_HEAD = MAX_KEY_BYTES - 41;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException("SHA-1 not available", e);
+			}
+		}
+	};
+
+	private KeyEncoder() {
+	}
+
+	/**
+	 * @param prefix already encoded prefix, including its trailing '#'.
+	 */
+	public static String encode(final String prefix, final String key) {
+		int len = key.length();
+		int i = 0;
+		// common case, nothing to rewrite so the only allocation is the concat.
+		while (i < len && !needsRewrite(key.charAt(i))) {
+			i++;
+		}
+		String encoded;
+		if (i == len) {
+			encoded = prefix.concat(key);
+		} else {
+			StringBuilder sb = new StringBuilder(prefix.length() + len);
+			sb.append(prefix).append(key, 0, i);
+			for (; i < len; i++) {
+				char c = key.charAt(i);
+				if (c == ':') {
+					sb.append('#');
+				} else if (!needsRewrite(c)) {
+					sb.append(c);
+				}
+			}
+			encoded = sb.toString();
+		}
+		if (encoded.length() * 3 <= MAX_KEY_BYTES || utf8Length(encoded) <= MAX_KEY_BYTES) {
+			return encoded;
+		}
+		return hashed(encoded);
+	}
+
+	protected static boolean needsRewrite(final char c) {
+		return c <= ' ' || c == '&' || c == '!' || c == ':' || c == 0x7f;
+	}
+
+	protected static int utf8Length(final String s) {
+		int bytes = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				bytes++;
+			} else if (c < 0x800) {
+				bytes += 2;
+			} else if (Character.isHighSurrogate(c)) {
+				bytes += 4;
+				i++;
+			} else {
+				bytes += 3;
+			}
+		}
+		return bytes;
+	}
+
+	protected static String hashed(final String encoded) {
+		MessageDigest md = digests.get();
+		md.reset();
+		byte[] digest;
+		try {
+			digest = md.digest(encoded.getBytes("UTF-8"));
+		} catch (java.io.UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		StringBuilder sb = new StringBuilder(MAX_KEY_BYTES);
+		// keep a head short enough in bytes, never splitting a surrogate pair.
+		int bytes = 0;
+		for (int i = 0; i < encoded.length(); i++) {
+			char c = encoded.charAt(i);
+			int size = c < 0x80 ? 1 : (c < 0x800 ? 2 : (Character.isHighSurrogate(c) ? 4 : 3));
+			if (bytes + size > HASHED_HEAD) {
+				break;
+			}
+			sb.append(c);
+			if (size == 4) {
+				sb.append(encoded.charAt(++i));
+			}
+			bytes += size;
+		}
+		sb.append('#');
+		for (byte b : digest) {
+			sb.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2009 Victor Igumnov <victori@fabulously40.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.base.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * One page of a key scan. The token is the last key of the page, the next page starts after it, so a scan
+ * resumes correctly even when keys were added or removed in between.
+ */
+public class KeyPage {
+	private final List<String> keys;
+	private final String nextToken;
+
+	public KeyPage(final List<String> keys, final String nextToken) {
+		this.keys = keys;
+		this.nextToken = nextToken;
+	}
+
+	public static void checkPageSize(final int pageSize) {
+		if (pageSize < 1) {
+			throw new IllegalArgumentException("page size must be at least 1, was " + pageSize);
+		}
+	}
+
+	public static KeyPage empty() {
+		return new KeyPage(new ArrayList<String>(0), null);
+	}
+
+	public List<String> getKeys() {
+		return keys;
+	}
+
+	/**
+	 * @return the token for the next page, null once the scan is done.
+	 */
+	public String getNextToken() {
+		return nextToken;
+	}
+
+	public boolean hasMore() {
+		return nextToken != null;
+	}
+
+	/**
+	 * Pages keys held in memory in no particular order. One pass per page, and only the page itself is
+	 * kept: a bounded max-heap of the smallest matching keys past the token.
+	 */
+	public static KeyPage select(final Iterable<?> keys, final String prefix, final String token, final int pageSize) {
+		checkPageSize(pageSize);
+		PriorityQueue<String> heap = new PriorityQueue<String>(pageSize + 1, Collections.reverseOrder());
+		boolean more = false;
+		for (Object o : keys) {
+			String key = String.valueOf(o);
+			if ((token != null && key.compareTo(token) <= 0) || (prefix != null && !key.startsWith(prefix))) {
+				continue;
+			}
+			if (heap.size() < pageSize) {
+				heap.add(key);
+			} else {
+				more = true;
+				if (key.compareTo(heap.peek()) < 0) {
+					heap.poll();
+					heap.add(key);
+				}
+			}
+		}
+		List<String> page = new ArrayList<String>(heap);
+		Collections.sort(page);
+		return new KeyPage(page, more ? page.get(page.size() - 1) : null);
+	}
+
+	/**
+	 * @return every matching key, fetched a page at a time as the iteration gets to it.
+	 */
+	public static Iterable<String> iterate(final ISupportKeyScan cache, final String prefix, final int pageSize) {
+		checkPageSize(pageSize);
+		return new Iterable<String>() {
+			public Iterator<String> iterator() {
+				return new Iterator<String>() {
+					private KeyPage page = cache.scanKeys(prefix, null, pageSize);
+					private int pos;
+
+					public boolean hasNext() {
+						while (pos >= page.getKeys().size()) {
+							if (!page.hasMore()) {
+								return false;
+							}
+							page = cache.scanKeys(prefix, page.getNextToken(), pageSize);
+							pos = 0;
+						}
+						return true;
+					}
+
+					public String next() {
+						if (!hasNext()) {
+							throw new NoSuchElementException();
+						}
+						return page.getKeys().get(pos++);
+					}
+
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+}
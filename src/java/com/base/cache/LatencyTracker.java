@@ -0,0 +1,77 @@
+/*
+ * Copyright 2009 Victor Igumnov <victori@fabulously40.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.base.cache;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps the last few latencies of an operation so percentiles can be read cheaply on the hot path.
+ * Percentiles are recomputed from the window every recomputeEvery samples, not on each read.
+ */
+public class LatencyTracker {
+	private final AtomicLongArray window;
+	// a long so the count never wraps, a wrapped int would stop the recomputes.
+	private final AtomicLong next = new AtomicLong();
+	private final int recomputeEvery;
+	private volatile long[] sorted = new long[0];
+
+	public LatencyTracker() {
+		this(1024, 128);
+	}
+
+	public LatencyTracker(final int windowSize, final int recomputeEvery) {
+		this.window = new AtomicLongArray(windowSize);
+		this.recomputeEvery = recomputeEvery;
+	}
+
+	public void record(final long micros) {
+		long n = next.getAndIncrement();
+		window.set((int) (n % window.length()), micros);
+		if (n % recomputeEvery == recomputeEvery - 1) {
+			recompute(n + 1);
+		}
+	}
+
+	protected void recompute(final long recorded) {
+		int size = (int) Math.min(recorded, window.length());
+		long[] copy = new long[size];
+		for (int i = 0; i < size; i++) {
+			copy[i] = window.get(i);
+		}
+		Arrays.sort(copy);
+		sorted = copy;
+	}
+
+	/**
+	 * @return the latency in microseconds under which the given percentage of the window falls, -1 before
+	 * the first recompute.
+	 */
+	public long getPercentile(final double percent) {
+		long[] s = sorted;
+		if (s.length == 0) {
+			return -1;
+		}
+		int idx = (int) Math.ceil(percent / 100.0 * s.length) - 1;
+		return s[Math.min(s.length - 1, Math.max(0, idx))];
+	}
+
+	public long getCount() {
+		return next.get();
+	}
+}
@@ -21,23 +21,27 @@ import com.meetup.memcached.MemcachedClient;
 import com.meetup.memcached.SockIOPool;
 
 import java.util.*;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
-public class Memcache implements ICache, ICacheStat, IDistributedCache {
+public class Memcache implements ICache, ICacheStat, IDistributedCache, ISupportLeases, ISupportKeyScan {
+	public static final int DEFAULT_INDEXED_KEYS = 100000;
 	private transient MemcachedClient client;
 	private String poolName;
-	private Map<String,Object> keys = new ConcurrentHashMap<String,Object>();
+	private volatile IKeyIndex keyIndex = new BoundedKeyIndex(DEFAULT_INDEXED_KEYS);
+	private volatile CircuitBreaker breaker = new CircuitBreaker();
+	private ClusterStatsCollector statsCollector;
     private boolean prefixedKeys;
     private String prefix;
     private Random rand;
+    private volatile String localNsKey;
+    private volatile long localNsExpires;
+    private volatile long namespaceTTL = 1000;
 
     public Memcache(final List<String> servers, final String poolName) {
         this(servers,poolName,false);
     }
 
     public Memcache(final List<String> servers, final String poolName, boolean prefixedKeys) {
-        this.keys = new ConcurrentHashMap<String, Object>();
         this.poolName = poolName;
         this.prefixedKeys = prefixedKeys;
         this.prefix = poolName + "_ns";
@@ -66,26 +70,82 @@ public class Memcache implements ICache, ICacheStat, IDistributedCache {
     }
 
 	public void put(final String key, final Object value) {
-		client.set(genKey(key), value);
-		if (!keys.containsKey(key)) {
-			keys.put(key,"item");
+		if (!breaker.allowRequest()) {
+			return;
 		}
+		long start = System.nanoTime();
+		report(client.set(genKey(key), value), start);
+		keyIndex.add(key, 0);
+	}
+
+	// the whalin client logs and swallows errors, a failed set is the only failure it reports.
+	protected void report(final boolean ok, final long start) {
+		if (ok) {
+			breaker.onSuccess(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+		} else {
+			breaker.onFailure();
+		}
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return breaker;
+	}
+
+	public void setCircuitBreaker(final CircuitBreaker breaker) {
+		this.breaker = breaker;
 	}
 
 	protected String genKey(final String key) {
-        String prefix = (prefixedKeys) ? getPoolName() + "#" + getPrefixKey() : getPoolName();
-        return prefix + "#" + key.replace(" ", "").replace("&", "").replace("!", "").replace(":", "#");
+		return genKey(getKeyPrefix(), key);
+	}
+
+	protected String getKeyPrefix() {
+		return (prefixedKeys) ? getPoolName() + "#" + getPrefixKey() : getPoolName();
+	}
+
+	protected String genKey(final String prefix, final String key) {
+		return prefix + "#" + key.replace(" ", "").replace("&", "").replace("!", "").replace(":", "#");
 	}
 
     protected String resetPrefixKey() {
         String nsKey = String.valueOf(rand.nextInt());
         client.set(prefix, nsKey);
+        // our own bump is visible right away, other nodes see it once their local copy expires.
+        cacheNamespace(nsKey);
         return nsKey;
     }
 
+    protected void cacheNamespace(final String nsKey) {
+        localNsKey = nsKey;
+        localNsExpires = System.currentTimeMillis() + namespaceTTL;
+    }
+
+    /**
+     * How long the namespace version of prefixed keys is cached in-process, in milliseconds.
+     * Other nodes pick up a clear() within this window, 0 looks it up on every operation.
+     */
+    public void setNamespaceTTL(final long millis) {
+        this.namespaceTTL = millis;
+        if (millis <= 0) {
+            localNsKey = null;
+        }
+    }
+
+    public long getNamespaceTTL() {
+        return namespaceTTL;
+    }
+
     protected String getPrefixKey() {
+        String local = localNsKey;
+        if (local != null && System.currentTimeMillis() < localNsExpires) {
+            return local;
+        }
         Object nsKey = client.get(prefix);
-        return nsKey == null ? resetPrefixKey() : String.valueOf(nsKey);
+        if (nsKey == null) {
+            return resetPrefixKey();
+        }
+        cacheNamespace(String.valueOf(nsKey));
+        return String.valueOf(nsKey);
     }
 
     public void setCompression(final boolean bool) {
@@ -102,13 +162,77 @@ public class Memcache implements ICache, ICacheStat, IDistributedCache {
 
 
 	public Object get(final String key) {
+		if (!breaker.allowRequest()) {
+			return null;
+		}
+		long start = System.nanoTime();
 		Object ret = client.get(genKey(key));
+		report(true, start);
+		return ret;
+	}
+
+	public Map<String,Object> getMulti(final Collection<String> keyList) {
+		Map<String,Object> found = new HashMap<String,Object>();
+		if (keyList.isEmpty() || !breaker.allowRequest()) {
+			return found;
+		}
+		long start = System.nanoTime();
+		String prefix = getKeyPrefix();
+		String[] genKeys = new String[keyList.size()];
+		Map<String,String> originals = new HashMap<String,String>(keyList.size() * 2);
+		int i = 0;
+		for (String key : keyList) {
+			genKeys[i] = genKey(prefix, key);
+			originals.put(genKeys[i], key);
+			i++;
+		}
+		Map<String,Object> ret = client.getMulti(genKeys);
+		report(true, start);
 		if (ret != null) {
-			if (!keys.containsKey(key)) {
-				keys.put(key, "item");
+			for (Map.Entry<String,Object> entry : ret.entrySet()) {
+				String key = originals.get(entry.getKey());
+				if (key != null && entry.getValue() != null) {
+					found.put(key, entry.getValue());
+				}
 			}
 		}
-		return ret;
+		return found;
+	}
+
+	public void putMulti(final Map<String,Object> values, final int ttl) {
+		if (!breaker.allowRequest()) {
+			return;
+		}
+		long start = System.nanoTime();
+		String prefix = getKeyPrefix();
+		boolean ok = true;
+		for (Map.Entry<String,Object> entry : values.entrySet()) {
+			ok &= client.set(genKey(prefix, entry.getKey()), entry.getValue(), expiry(ttl));
+			keyIndex.add(entry.getKey(), ttl);
+		}
+		report(ok, start);
+	}
+
+	public void removeMulti(final Collection<String> keyList) {
+		if (!breaker.allowRequest()) {
+			return;
+		}
+		long start = System.nanoTime();
+		String prefix = getKeyPrefix();
+		for (String key : keyList) {
+			client.delete(genKey(prefix, key));
+			keyIndex.remove(key);
+		}
+		report(true, start);
+	}
+
+	public boolean acquireLease(final String key, final int ttl) {
+		// add only stores when the key is absent, the date is sent as a relative expiry.
+		return client.add(genKey(key), Boolean.TRUE, expiry(ttl));
+	}
+
+	public void releaseLease(final String key) {
+		client.delete(genKey(key));
 	}
 
 	@SuppressWarnings("unchecked")
@@ -116,50 +240,72 @@ public class Memcache implements ICache, ICacheStat, IDistributedCache {
 		return getClient().stats();
 	}
 
-	@SuppressWarnings("unchecked")
-	protected String getStatKey(final String key) {
-		for (Iterator<Entry> i = getClient().stats().entrySet().iterator(); i.hasNext();) {
-			Map.Entry entry = i.next();
-			Map<String, String> val = (Map<String, String>) entry.getValue();
-			return val.get(key);
+	protected long getStatsInterval() {
+		return 10000;
+	}
+
+	public synchronized ClusterStatsCollector getStatsCollector() {
+		if (statsCollector == null) {
+			statsCollector = new ClusterStatsCollector(new ClusterStatsCollector.IStatsSource() {
+				@SuppressWarnings("unchecked")
+				public Map<String, Map<String, String>> fetchStats() {
+					return getClient().stats();
+				}
+			}, getStatsInterval());
 		}
-		return "";
+		return statsCollector;
+	}
+
+	/**
+	 * @return the stat summed over every server, from the last background poll.
+	 */
+	protected String getStatKey(final String key) {
+		return String.valueOf(getStatsCollector().getTotal(key));
 	}
 
 	public long getCacheMisses() {
-		return Long.valueOf(getStatKey("get_misses"));
+		return getStatsCollector().getTotal("get_misses");
 	}
 
 	public long getCacheHits() {
-		return Long.valueOf(getStatKey("get_hits"));
+		return getStatsCollector().getTotal("get_hits");
 	}
 
 	public long getCacheEvictions() {
-		return Long.valueOf(getStatKey("evictions"));
+		return getStatsCollector().getTotal("evictions");
 	}
 
 	public long getCacheElements() {
-		// memcachedb does not have this
-		String str = getStatKey("curr_items");
-		if (str != null && !str.equals("")) {
-			return Long.valueOf(str);
-		} else {
-			return 0;
-		}
+		// memcachedb does not have this, it adds up to 0.
+		return getStatsCollector().getTotal("curr_items");
 	}
 
 	public long getCacheBytes() {
 		// memcachedb does not have this
-		String str = getStatKey("bytes");
-		if (str != null && !str.equals("")) {
-			return Long.valueOf(str);
-		} else {
-			return 0;
-		}
+		return getStatsCollector().getTotal("bytes");
 	}
 
+	/**
+	 * Only the keys this node has seen, as far as the key index tracks them, see getKeyIndex().getAccuracy().
+	 */
 	public List<String> getKeys() {
-		return new ArrayList<String>(keys.keySet());
+		return keyIndex.getKeys();
+	}
+
+	public KeyPage scanKeys(final String prefix, final String token, final int pageSize) {
+		return keyIndex.scanKeys(prefix, token, pageSize);
+	}
+
+	public IKeyIndex getKeyIndex() {
+		return keyIndex;
+	}
+
+	/**
+	 * Defaults to a BoundedKeyIndex holding up to DEFAULT_INDEXED_KEYS entries. NoKeyIndex turns tracking off,
+	 * BloomKeyIndex only answers membership.
+	 */
+	public void setKeyIndex(final IKeyIndex keyIndex) {
+		this.keyIndex = keyIndex;
 	}
 
 	public void clear() {
@@ -168,21 +314,31 @@ public class Memcache implements ICache, ICacheStat, IDistributedCache {
         } else {
             client.flushAll();
         }
-		keys.clear();
+		keyIndex.clear();
 	}
 
 	public void remove(final String key) {
-		client.delete(genKey(key));
-		if (keys.containsKey(key)) {
-			keys.remove(key);
+		if (!breaker.allowRequest()) {
+			return;
 		}
+		long start = System.nanoTime();
+		client.delete(genKey(key));
+		report(true, start);
+		keyIndex.remove(key);
 	}
 
 	public void put(final String key, final Object value, final int ttl) {
-		client.set(genKey(key), value);
-		if (!keys.containsKey(key)) {
-			keys.put(key, "item");
+		if (!breaker.allowRequest()) {
+			return;
 		}
+		long start = System.nanoTime();
+		report(client.set(genKey(key), value, expiry(ttl)), start);
+		keyIndex.add(key, ttl);
+	}
+
+	// the client sends the date's seconds as the expiry, under 30 days memcached reads them as relative.
+	protected static Date expiry(final int ttl) {
+		return new Date(ttl * 1000L);
 	}
 
 	public String getPoolName() {
@@ -194,6 +350,11 @@ public class Memcache implements ICache, ICacheStat, IDistributedCache {
 	}
 
 	public void disconnect() {
+		synchronized (this) {
+			if (statsCollector != null) {
+				statsCollector.stop();
+			}
+		}
 		SockIOPool pool = SockIOPool.getInstance(getPoolName());
 		if (pool != null && pool.isInitialized()) {
 			SockIOPool.getInstance(getPoolName()).shutDown();
@@ -17,36 +17,97 @@
 package com.base.cache;
 
 import net.spy.memcached.AddrUtil;
-import net.spy.memcached.KetamaConnectionFactory;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.ConnectionFactory;
+import net.spy.memcached.ConnectionFactoryBuilder;
+import net.spy.memcached.FailureMode;
+import net.spy.memcached.HashAlgorithm;
 import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.ops.ArrayOperationQueueFactory;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.Serializable;
+import java.net.SocketAddress;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
-public class Memcache2 implements ICache, ICacheStat, IDistributedCache, ISupportAsyncOperations {
+public class Memcache2 implements ICache, ICacheStat, IDistributedCache, ISupportAsyncOperations, INonBlockingCache,
+        ISupportLeases, ISupportKeyScan {
     private String poolName;
-    private Map<String, Object> keys;
+    private volatile IKeyIndex keyIndex = new BoundedKeyIndex(Memcache.DEFAULT_INDEXED_KEYS);
     private static transient Logger logger = LoggerFactory.getLogger(Memcache2.class);
     private List<MemcachedClient> memPool;
     private boolean prefixedKeys;
     private String prefix;
     private Random rand;
+    private String poolPrefix;
+    private volatile Namespace namespace;
+    private volatile long namespaceTTL = 1000;
+
+    private MemcacheClientConfig config;
+    private AtomicIntegerArray outstanding;
+    private final LatencyTracker readLatency = new LatencyTracker();
+    private final AtomicLong hedgedReads = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong budgetExhausted = new AtomicLong();
+    private volatile CircuitBreaker breaker = new CircuitBreaker();
+    private final AtomicLong failedWrites = new AtomicLong();
+    private ClusterStatsCollector statsCollector;
+    private final Transcoder<Object> transcoder;
+    private final AtomicLong chunkedWrites = new AtomicLong();
+    private final AtomicLong chunkedReads = new AtomicLong();
+    private final AtomicLong invalidChunkedReads = new AtomicLong();
+    private volatile ThreadPoolExecutor asyncExec;
 
     protected int getPoolSize() {
-        return 1;
+        return config.getPoolSize();
     }
 
     // this was needed to get around spymemcached's job queue for high load requirements.
     protected MemcachedClient getClient() {
-        if (getPoolSize() == 1) {
-            return memPool.get(0);
-        } else {
-            return memPool.get(rand.nextInt(memPool.size()));
+        return memPool.get(selectClient());
+    }
+
+    protected int selectClient() {
+        int size = memPool.size();
+        if (size == 1) {
+            return 0;
+        }
+        switch (config.getSelection()) {
+            case THREAD_AFFINITY:
+                return (int) (Thread.currentThread().getId() % size);
+            case LEAST_LOADED:
+                // start the scan at a random client so ties do not all land on the first one.
+                int start = ThreadLocalRandom.current().nextInt(size);
+                int best = start;
+                for (int i = 1; i < size; i++) {
+                    int idx = (start + i) % size;
+                    if (outstanding.get(idx) < outstanding.get(best)) {
+                        best = idx;
+                    }
+                }
+                return best;
+            default:
+                return ThreadLocalRandom.current().nextInt(size);
         }
     }
 
@@ -55,19 +116,25 @@ public class Memcache2 implements ICache, ICacheStat, IDistributedCache, ISuppor
     }
 
     public Memcache2(final List<String> servers, final String poolName, boolean prefixedKeys) {
-        this.keys = new ConcurrentHashMap<String, Object>();
+        this(servers, poolName, prefixedKeys, new MemcacheClientConfig());
+    }
+
+    public Memcache2(final List<String> servers, final String poolName, boolean prefixedKeys, final MemcacheClientConfig config) {
         this.memPool = new ArrayList<MemcachedClient>();
         this.prefixedKeys = prefixedKeys;
         this.prefix = poolName + "_ns";
         this.rand = new Random(System.currentTimeMillis());
         this.poolName = poolName;
+        this.poolPrefix = poolName + "#";
+        this.config = config;
+        this.transcoder = createTranscoder();
         StringBuffer sb = new StringBuffer();
         for (String s : servers) {
             sb.append(s + " ");
         }
         try {
             for (int i = 0; i < getPoolSize(); i++) {
-                memPool.add(new MemcachedClient(new KetamaConnectionFactory(), AddrUtil.getAddresses(sb.toString())));
+                memPool.add(new MemcachedClient(createConnectionFactory(), AddrUtil.getAddresses(sb.toString())));
             }
             //client.setTranscoder(new SerializingTranscoder());
             //Logger.getLogger(SerializingTranscoder.class.getName()).setLevel(Level.WARNING);
@@ -75,29 +142,485 @@ public class Memcache2 implements ICache, ICacheStat, IDistributedCache, ISuppor
         } catch (Exception e) {
             logger.error("failed to start", e);
         }
+        this.outstanding = new AtomicIntegerArray(Math.max(1, memPool.size()));
+    }
+
+    // same ketama distribution as KetamaConnectionFactory, with the queue and timeouts from the config.
+    protected ConnectionFactory createConnectionFactory() {
+        return new ConnectionFactoryBuilder()
+                .setTranscoder(transcoder)
+                .setLocatorType(ConnectionFactoryBuilder.Locator.CONSISTENT)
+                .setHashAlg(HashAlgorithm.KETAMA_HASH)
+                .setFailureMode(FailureMode.Redistribute)
+                .setOpQueueFactory(new ArrayOperationQueueFactory(config.getOpQueueSize()))
+                .setOpQueueMaxBlockTime(config.getOpQueueMaxBlockTime())
+                .setOpTimeout(config.getOperationTimeout())
+                .setProtocol(config.getProtocol())
+                .build();
+    }
+
+    /**
+     * Values are encoded without a size limit, clientSet splits whatever is larger than the chunk size.
+     */
+    protected Transcoder<Object> createTranscoder() {
+        if (config.getCompression() != null) {
+            return new CompressingTranscoder(config.getCompression(), Integer.MAX_VALUE);
+        }
+        return new SerializingTranscoder(Integer.MAX_VALUE);
+    }
+
+    public MemcacheClientConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * @return operations in flight per client. Only counted with the LEAST_LOADED selection, all 0 otherwise.
+     */
+    public int[] getClientQueueDepths() {
+        int[] depths = new int[outstanding.length()];
+        for (int i = 0; i < depths.length; i++) {
+            depths[i] = outstanding.get(i);
+        }
+        return depths;
+    }
+
+    protected <T> Future<T> track(final int idx, final Future<T> f) {
+        if (config.getSelection() != MemcacheClientConfig.Selection.LEAST_LOADED || memPool.size() == 1) {
+            return f;
+        }
+        outstanding.incrementAndGet(idx);
+        FutureCompleter.getInstance().complete(f, getOperationTimeout(), TimeUnit.MILLISECONDS)
+                .whenComplete(new BiConsumer<T, Throwable>() {
+                    public void accept(final T ret, final Throwable t) {
+                        outstanding.decrementAndGet(idx);
+                    }
+                });
+        return f;
+    }
+
+    protected Future<Object> clientGet(final String key) {
+        return clientGet(selectClient(), key);
+    }
+
+    protected Future<Object> clientGet(final int idx, final String key) {
+        return track(idx, memPool.get(idx).asyncGet(key));
+    }
+
+    /**
+     * A get that waits at most waitMillis. With hedged reads on, a get still pending after the hedge delay
+     * is sent again on another client and whichever answers first wins. Failed and timed out gets are
+     * recorded too, otherwise a slow pool would look fast to the hedge delay and the retry budget.
+     */
+    protected Object hedgedGet(final String genKey, final long waitMillis) throws Exception {
+        long start = System.nanoTime();
+        try {
+            int idx = selectClient();
+            Future<Object> first = clientGet(idx, genKey);
+            long waitMicros = TimeUnit.MILLISECONDS.toMicros(waitMillis);
+            long hedgeDelay = getHedgeDelay();
+            if (hedgeDelay < 0 || hedgeDelay >= waitMicros) {
+                return first.get(waitMillis, TimeUnit.MILLISECONDS);
+            }
+            try {
+                return first.get(hedgeDelay, TimeUnit.MICROSECONDS);
+            } catch (TimeoutException e) {
+                return hedge(first, idx, genKey, waitMicros - hedgeDelay);
+            }
+        } finally {
+            readLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        }
+    }
+
+    protected Object hedge(final Future<Object> first, final int idx, final String genKey, final long waitMicros)
+            throws Exception {
+        hedgedReads.incrementAndGet();
+        // memcached has no replicas, a second client still reaches the same node but skips a backed up queue.
+        int other = (idx + 1) % memPool.size();
+        Future<Object> second = clientGet(other, genKey);
+        final CompletableFuture<Object> firstDone = FutureCompleter.getInstance().complete(first, waitMicros,
+                TimeUnit.MICROSECONDS);
+        final CompletableFuture<Object> secondDone = FutureCompleter.getInstance().complete(second, waitMicros,
+                TimeUnit.MICROSECONDS);
+        // a miss is an answer too, the read only fails once both attempts failed.
+        final CompletableFuture<Object> winner = new CompletableFuture<Object>();
+        firstDone.whenComplete(new BiConsumer<Object, Throwable>() {
+            public void accept(final Object ret, final Throwable t) {
+                if (t == null) {
+                    winner.complete(ret);
+                } else if (secondDone.isCompletedExceptionally()) {
+                    winner.completeExceptionally(t);
+                }
+            }
+        });
+        secondDone.whenComplete(new BiConsumer<Object, Throwable>() {
+            public void accept(final Object ret, final Throwable t) {
+                if (t == null) {
+                    if (winner.complete(ret)) {
+                        hedgeWins.incrementAndGet();
+                    }
+                } else if (firstDone.isCompletedExceptionally()) {
+                    winner.completeExceptionally(t);
+                }
+            }
+        });
+        try {
+            return winner.get(waitMicros, TimeUnit.MICROSECONDS);
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * @return microseconds to wait before hedging a get, -1 when reads are not hedged. A single client has
+     * nothing to hedge on, a second get on it would only queue behind the first.
+     */
+    protected long getHedgeDelay() {
+        if (!config.isHedgedReads() || memPool.size() < 2) {
+            return -1;
+        }
+        long p = readLatency.getPercentile(config.getHedgePercentile());
+        if (p < 0) {
+            return -1;
+        }
+        return Math.max(p, TimeUnit.MILLISECONDS.toMicros(config.getMinHedgeDelay()));
+    }
+
+    /**
+     * A timed out call is only retried if the rest of its budget still covers a slow but healthy read.
+     */
+    protected boolean canAffordRetry(final long deadline) {
+        long remaining = TimeUnit.NANOSECONDS.toMicros(deadline - System.nanoTime());
+        long p99 = readLatency.getPercentile(99);
+        return remaining > (p99 < 0 ? TimeUnit.MILLISECONDS.toMicros(getOperationTimeout()) : p99);
+    }
+
+    protected long getDeadline() {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getRequestBudget());
+    }
+
+    protected <T> BiConsumer<T, Throwable> report(final long start) {
+        return new BiConsumer<T, Throwable>() {
+            public void accept(final T ret, final Throwable t) {
+                if (t == null) {
+                    breaker.onSuccess(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                } else {
+                    breaker.onFailure();
+                }
+            }
+        };
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
+    public void setCircuitBreaker(final CircuitBreaker breaker) {
+        this.breaker = breaker;
+    }
+
+    public LatencyTracker getReadLatency() {
+        return readLatency;
+    }
+
+    public long getHedgedReadCount() {
+        return hedgedReads.get();
+    }
+
+    /**
+     * @return hedged reads where the second request answered first.
+     */
+    public long getHedgeWinCount() {
+        return hedgeWins.get();
+    }
+
+    /**
+     * @return calls that gave up because their budget ran out.
+     */
+    public long getBudgetExhaustedCount() {
+        return budgetExhausted.get();
+    }
+
+    protected Future<Map<String, Object>> clientGetBulk(final Collection<String> keyList) {
+        int idx = selectClient();
+        return track(idx, memPool.get(idx).asyncGetBulk(keyList));
+    }
+
+    protected Future<Boolean> clientSet(final String key, final int ttl, final Object value) {
+        int idx = selectClient();
+        try {
+            CachedData data = transcoder.encode(value);
+            if (data.getData().length > config.getChunkSize()) {
+                return setChunked(idx, key, ttl, data);
+            }
+            return track(idx, memPool.get(idx).set(key, ttl, data, RawTranscoder.INSTANCE));
+        } catch (RuntimeException e) {
+            // too large to encode, full queue... the write never left.
+            failedWrites.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the chunks and then the manifest, all pipelined on one client. The returned future is true once
+     * every part is stored. A reader that finds the manifest before its chunks fails validation and misses.
+     */
+    protected Future<Boolean> setChunked(final int idx, final String key, final int ttl, final CachedData data) {
+        byte[] bytes = data.getData();
+        List<byte[]> chunks = ChunkManifest.split(bytes, config.getChunkSize());
+        int count = chunks.size();
+        ChunkManifest manifest = new ChunkManifest(key, ThreadLocalRandom.current().nextLong(), count, bytes.length,
+                data.getFlags(), ChunkManifest.crc(bytes));
+        MemcachedClient client = memPool.get(idx);
+        final CompletableFuture<?>[] parts = new CompletableFuture<?>[count + 1];
+        for (int i = 0; i < count; i++) {
+            parts[i] = complete(track(idx, client.set(manifest.getChunkKey(i), ttl,
+                    new CachedData(0, chunks.get(i), Integer.MAX_VALUE), RawTranscoder.INSTANCE)));
+        }
+        parts[count] = complete(track(idx, client.set(key, ttl, manifest)));
+        chunkedWrites.incrementAndGet();
+        return CompletableFuture.allOf(parts).thenApply(new Function<Void, Boolean>() {
+            public Boolean apply(final Void v) {
+                for (CompletableFuture<?> part : parts) {
+                    if (!Boolean.TRUE.equals(part.join())) {
+                        return Boolean.FALSE;
+                    }
+                }
+                return Boolean.TRUE;
+            }
+        });
+    }
+
+    private <T> CompletableFuture<T> complete(final Future<T> f) {
+        return FutureCompleter.getInstance().complete(f, getOperationTimeout(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the value itself, or for a chunk manifest the reassembled value. Missing or corrupt chunks
+     * read as a miss.
+     */
+    protected Object unchunk(final Object ret, final long waitMillis) throws Exception {
+        if (!(ret instanceof ChunkManifest)) {
+            return ret;
+        }
+        ChunkManifest manifest = (ChunkManifest) ret;
+        return assemble(manifest, clientGetChunks(manifest.getChunkKeys()).get(waitMillis, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Fetches the chunks of all manifests in one bulk get that must finish within waitMillis. A value whose
+     * chunks did not arrive in time or do not validate is left out, like a miss.
+     * @param manifests by the caller's key.
+     */
+    protected Map<String, Object> unchunkAll(final Map<String, ChunkManifest> manifests, final long waitMillis) {
+        Map<String, Object> values = new HashMap<String, Object>(manifests.size() * 2);
+        List<String> chunkKeys = new ArrayList<String>();
+        for (ChunkManifest manifest : manifests.values()) {
+            chunkKeys.addAll(manifest.getChunkKeys());
+        }
+        Map<String, CachedData> chunks;
+        try {
+            chunks = clientGetChunks(chunkKeys).get(Math.max(0, waitMillis), TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            logger.error("failed to fetch the chunks of " + manifests.size() + " values", e);
+            chunkedReads.addAndGet(manifests.size());
+            invalidChunkedReads.addAndGet(manifests.size());
+            return values;
+        }
+        for (Map.Entry<String, ChunkManifest> entry : manifests.entrySet()) {
+            Object value = assemble(entry.getValue(), chunks);
+            if (value != null) {
+                values.put(entry.getKey(), value);
+            }
+        }
+        return values;
+    }
+
+    protected CompletionStage<Object> unchunkAsync(final Object ret) {
+        if (!(ret instanceof ChunkManifest)) {
+            return CompletableFuture.completedFuture(ret);
+        }
+        final ChunkManifest manifest = (ChunkManifest) ret;
+        return complete(clientGetChunks(manifest.getChunkKeys())).thenApply(new Function<Map<String, CachedData>, Object>() {
+            public Object apply(final Map<String, CachedData> chunks) {
+                return assemble(manifest, chunks);
+            }
+        });
+    }
+
+    protected Future<Map<String, CachedData>> clientGetChunks(final Collection<String> chunkKeys) {
+        int idx = selectClient();
+        return track(idx, memPool.get(idx).asyncGetBulk(chunkKeys, RawTranscoder.INSTANCE));
+    }
+
+    protected Object assemble(final ChunkManifest manifest, final Map<String, CachedData> chunks) {
+        chunkedReads.incrementAndGet();
+        byte[] bytes = manifest.join(chunks);
+        if (bytes == null) {
+            invalidChunkedReads.incrementAndGet();
+            return null;
+        }
+        return transcoder.decode(new CachedData(manifest.getFlags(), bytes, Integer.MAX_VALUE));
+    }
+
+    public long getChunkedWriteCount() {
+        return chunkedWrites.get();
+    }
+
+    public long getChunkedReadCount() {
+        return chunkedReads.get();
+    }
+
+    /**
+     * @return chunked reads that found a chunk missing or not matching the manifest, served as misses.
+     */
+    public long getInvalidChunkedReadCount() {
+        return invalidChunkedReads.get();
+    }
+
+    protected Future<Boolean> clientAdd(final String key, final int ttl, final Object value) {
+        int idx = selectClient();
+        return track(idx, memPool.get(idx).add(key, ttl, value));
+    }
+
+    protected Future<Boolean> clientDelete(final String key) {
+        int idx = selectClient();
+        try {
+            return track(idx, memPool.get(idx).delete(key));
+        } catch (RuntimeException e) {
+            failedWrites.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for a set or delete in ACKNOWLEDGED mode, only watches it in FIRE_AND_FORGET mode. A delete
+     * of a missing key answers false, which is not a failure. A write that was sent but not acknowledged
+     * in time may still land, it is counted as failed and not thrown, since a retry would only send it again.
+     */
+    protected void write(final Future<Boolean> f, final long waitMillis, final boolean falseFails) throws Exception {
+        if (config.getWriteMode() == MemcacheClientConfig.WriteMode.FIRE_AND_FORGET) {
+            watch(f, falseFails);
+            return;
+        }
+        try {
+            if (!Boolean.TRUE.equals(f.get(waitMillis, TimeUnit.MILLISECONDS)) && falseFails) {
+                failedWrites.incrementAndGet();
+            }
+        } catch (TimeoutException e) {
+            failedWrites.incrementAndGet();
+            logger.error("write not acknowledged within " + waitMillis + "ms");
+        } catch (Exception e) {
+            failedWrites.incrementAndGet();
+            throw e;
+        }
+    }
+
+    // the writes are already pipelined on the connections, waiting on them in turn costs one round trip.
+    protected void writeAll(final List<Future<Boolean>> writes, final boolean falseFails, final long waitMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+        for (Future<Boolean> f : writes) {
+            try {
+                write(f, Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())), falseFails);
+            } catch (Exception e) {
+                throw new IllegalStateException("bulk write failed", e);
+            }
+        }
+    }
+
+    protected CompletionStage<Boolean> writeAsync(final Future<Boolean> f, final boolean falseFails) {
+        if (config.getWriteMode() == MemcacheClientConfig.WriteMode.FIRE_AND_FORGET) {
+            watch(f, falseFails);
+            return CompletableFuture.completedFuture(Boolean.TRUE);
+        }
+        return FutureCompleter.getInstance().complete(f, getOperationTimeout(), TimeUnit.MILLISECONDS)
+                .whenComplete(countFailure(falseFails));
+    }
+
+    protected void watch(final Future<Boolean> f, final boolean falseFails) {
+        FutureCompleter.getInstance().complete(f, getOperationTimeout(), TimeUnit.MILLISECONDS)
+                .whenComplete(countFailure(falseFails));
+    }
+
+    private BiConsumer<Boolean, Throwable> countFailure(final boolean falseFails) {
+        return new BiConsumer<Boolean, Throwable>() {
+            public void accept(final Boolean ok, final Throwable t) {
+                if (t != null || (falseFails && !Boolean.TRUE.equals(ok))) {
+                    failedWrites.incrementAndGet();
+                }
+            }
+        };
+    }
+
+    /**
+     * @return sets and deletes that failed or timed out, including the unacknowledged ones.
+     */
+    public long getFailedWriteCount() {
+        return failedWrites.get();
     }
 
     protected String resetPrefixKey() {
         final String nsKey = String.valueOf(rand.nextInt());
         retryDo(new IDo() {
-            private static final long serialVersionUID = 1L;
-
-            public Object execute() {
-                getClient().set(prefix,0,nsKey);
+            public Object execute(final long waitMillis) {
+                clientSet(prefix,0,nsKey);
                 return null;
             }
         });
+        // our own bump is visible right away, other nodes see it once their local copy expires.
+        cacheNamespace(nsKey);
         return nsKey;
     }
 
+    // the encoded key prefix is built once per namespace version, not on every operation.
+    private static final class Namespace {
+        final String key;
+        final String prefix;
+        final long expires;
+
+        Namespace(final String key, final String prefix, final long expires) {
+            this.key = key;
+            this.prefix = prefix;
+            this.expires = expires;
+        }
+    }
+
+    protected void cacheNamespace(final String nsKey) {
+        namespace = new Namespace(nsKey, poolPrefix + nsKey + "#", System.currentTimeMillis() + namespaceTTL);
+    }
+
+    protected String getLocalNamespace() {
+        Namespace ns = namespace;
+        if (ns != null && System.currentTimeMillis() < ns.expires) {
+            return ns.key;
+        }
+        return null;
+    }
+
+    /**
+     * How long the namespace version of prefixed keys is cached in-process, in milliseconds.
+     * Other nodes pick up a clear() within this window, 0 looks it up on every operation.
+     */
+    public void setNamespaceTTL(final long millis) {
+        this.namespaceTTL = millis;
+        if (millis <= 0) {
+            namespace = null;
+        }
+    }
+
+    public long getNamespaceTTL() {
+        return namespaceTTL;
+    }
+
     protected String getPrefixKey() {
+        String local = getLocalNamespace();
+        if (local != null) {
+            return local;
+        }
         Object nsKey = retryDo(new IDo() {
-            private static final long serialVersionUID = 1L;
-
-            public Object execute() {
+            public Object execute(final long waitMillis) {
                 try {
-                    Future<Object> f = getClient().asyncGet(prefix);
-                    Object ret = f.get(2000, TimeUnit.MILLISECONDS);
+                    Future<Object> f = clientGet(prefix);
+                    Object ret = f.get(waitMillis, TimeUnit.MILLISECONDS);
                     return ret;
                 } catch (Exception e) {
                     logger.error("timed out", e);
@@ -106,28 +629,41 @@ public class Memcache2 implements ICache, ICacheStat, IDistributedCache, ISuppor
 
             }
         });
-        return nsKey == null ? resetPrefixKey() : String.valueOf(nsKey);
+        if (nsKey == null) {
+            return resetPrefixKey();
+        }
+        cacheNamespace(String.valueOf(nsKey));
+        return String.valueOf(nsKey);
     }
 
     public void put(final String key, final Object value, final int ttl) {
-        retryDo(new IDo() {
-            private static final long serialVersionUID = 1L;
-
-            public Object execute() {
-                if (value != null) {
-                    getClient().set(genKey(key), ttl, value);
-                    if (!keys.containsKey(key)) {
-                        keys.put(key, "item");
-                    }
-                }
-                return null;
-            }
-        });
+        if (value != null) {
+            retryOp(KeyOp.SET, key, value, ttl);
+        }
     }
 
     protected String genKey(final String key) {
-        String prefix = (prefixedKeys) ? getPoolName() + "#" + getPrefixKey() : getPoolName();
-        return prefix + "#" + key.replace(" ", "").replace("&", "").replace("!", "").replace(":", "#");
+        return genKey(getKeyPrefix(), key);
+    }
+
+    /**
+     * @return the encoded prefix of every key in this pool, including its trailing '#'.
+     */
+    protected String getKeyPrefix() {
+        if (!prefixedKeys) {
+            return poolPrefix;
+        }
+        Namespace ns = namespace;
+        if (ns != null && System.currentTimeMillis() < ns.expires) {
+            return ns.prefix;
+        }
+        String nsKey = getPrefixKey();
+        ns = namespace;
+        return (ns != null && ns.key.equals(nsKey)) ? ns.prefix : poolPrefix + nsKey + "#";
+    }
+
+    protected String genKey(final String prefix, final String key) {
+        return KeyEncoder.encode(prefix, key);
     }
 
     public void put(final String key, final Object value) {
@@ -136,137 +672,519 @@ public class Memcache2 implements ICache, ICacheStat, IDistributedCache, ISuppor
 
     public void clear() {
         retryDo(new IDo() {
-            private static final long serialVersionUID = 1L;
-
-            public Object execute() {
+            public Object execute(final long waitMillis) {
                 if(prefixedKeys) {
                     resetPrefixKey();
                 } else {
                     getClient().flush();
                 }
-                keys.clear();
+                keyIndex.clear();
                 return null;
             }
         });
     }
 
-    protected static interface IDo extends Serializable {
-        public Object execute();
+    protected static interface IDo {
+        /**
+         * @param waitMillis how long this attempt may wait, the operation timeout or less when the budget is short.
+         */
+        public Object execute(long waitMillis);
+    }
+
+    /**
+     * The per-key operations on the hot path. They carry no state, so a call does not allocate a closure.
+     */
+    protected static enum KeyOp {
+        GET {
+            Object execute(final Memcache2 cache, final String key, final Object value, final int ttl,
+                    final long waitMillis) throws Exception {
+                // the chunks only get what the manifest read left of the wait.
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+                Object ret = cache.hedgedGet(cache.genKey(key), waitMillis);
+                return cache.unchunk(ret, Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            }
+        },
+        SET {
+            Object execute(final Memcache2 cache, final String key, final Object value, final int ttl,
+                    final long waitMillis) throws Exception {
+                cache.write(cache.clientSet(cache.genKey(key), ttl, value), waitMillis, true);
+                cache.keyIndex.add(key, ttl);
+                return null;
+            }
+        },
+        DELETE {
+            Object execute(final Memcache2 cache, final String key, final Object value, final int ttl,
+                    final long waitMillis) throws Exception {
+                cache.write(cache.clientDelete(cache.genKey(key)), waitMillis, false);
+                cache.keyIndex.remove(key);
+                return null;
+            }
+        };
+
+        abstract Object execute(Memcache2 cache, String key, Object value, int ttl, long waitMillis)
+                throws Exception;
+    }
+
+    protected long getOperationTimeout() {
+        return config.getOperationTimeout();
     }
 
     protected int getMaxRetries() {
         return 3;
     }
 
+    /**
+     * retryDo through the circuit breaker, for data operations. Namespace lookups stay on plain retryDo
+     * so a rejected call is never mistaken for a missing namespace.
+     */
+    protected Object guardedDo(final IDo action) {
+        return retryDo(action, breaker);
+    }
+
     protected Object retryDo(final IDo action) {
+        return retryDo(action, null);
+    }
+
+    private Object retryDo(final IDo action, final CircuitBreaker guard) {
         Object ret = null;
+        if (guard != null && !guard.allowRequest()) {
+            return null;
+        }
+        long start = System.nanoTime();
+        long deadline = getDeadline();
         for (int i = 0; i < getMaxRetries(); i++) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                budgetExhausted.incrementAndGet();
+                break;
+            }
             try {
-                ret = action.execute();
+                ret = action.execute(Math.min(getOperationTimeout(), remaining));
+                if (guard != null) {
+                    guard.onSuccess(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                }
                 return ret;
             } catch (Exception e) {
                 logger.error("failed to execute, retrying..." + i + " time.", e);
                 // we only do this due to some jvm bug with thread Future.
             }
         }
+        if (guard != null) {
+            guard.onFailure();
+        }
         return ret;
     }
 
+    protected Object retryOp(final KeyOp op, final String key, final Object value, final int ttl) {
+        // a dead pool answers with misses right away instead of timing out every call.
+        if (!breaker.allowRequest()) {
+            return null;
+        }
+        long start = System.nanoTime();
+        long deadline = getDeadline();
+        for (int i = 0; i < getMaxRetries(); i++) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                budgetExhausted.incrementAndGet();
+                break;
+            }
+            try {
+                Object ret = op.execute(this, key, value, ttl, Math.min(getOperationTimeout(), remaining));
+                breaker.onSuccess(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                return ret;
+            } catch (TimeoutException e) {
+                if (!canAffordRetry(deadline)) {
+                    logger.error("timed out, no budget left to retry " + key);
+                    budgetExhausted.incrementAndGet();
+                    break;
+                }
+                logger.error("timed out, retrying..." + i + " time.", e);
+            } catch (Exception e) {
+                logger.error("failed to execute, retrying..." + i + " time.", e);
+            }
+        }
+        breaker.onFailure();
+        return null;
+    }
+
     public Object get(final String key) {
-        return retryDo(new IDo() {
-            private static final long serialVersionUID = 1L;
+        return retryOp(KeyOp.GET, key, null, 0);
+    }
 
-            public Object execute() {
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> getMulti(final Collection<String> keyList) {
+        if (keyList.isEmpty()) {
+            return new HashMap<String, Object>();
+        }
+        Object ret = guardedDo(new IDo() {
+            public Object execute(final long waitMillis) {
+                // resolve the namespace once for the whole batch.
+                String prefix = getKeyPrefix();
+                Map<String, String> genKeys = new HashMap<String, String>(keyList.size() * 2);
+                for (String key : keyList) {
+                    genKeys.put(genKey(prefix, key), key);
+                }
+                Map<String, Object> found = new HashMap<String, Object>(keyList.size() * 2);
+                Map<String, ChunkManifest> chunked = null;
                 try {
-                    Future<Object> f = getClient().asyncGet(genKey(key));
-                    Object ret = f.get(2000, TimeUnit.MILLISECONDS);
-                    //Object ret = getClient().get(genKey(key));
-                    if (ret != null) {
-                        if (!keys.containsKey(key)) {
-                            keys.put(key, "item");
+                    long deadline = System.currentTimeMillis() + waitMillis;
+                    Future<Map<String, Object>> f = clientGetBulk(genKeys.keySet());
+                    for (Map.Entry<String, Object> entry : f.get(waitMillis, TimeUnit.MILLISECONDS).entrySet()) {
+                        String key = genKeys.get(entry.getKey());
+                        if (key == null || entry.getValue() == null) {
+                            continue;
+                        }
+                        if (entry.getValue() instanceof ChunkManifest) {
+                            if (chunked == null) {
+                                chunked = new HashMap<String, ChunkManifest>();
+                            }
+                            chunked.put(key, (ChunkManifest) entry.getValue());
+                        } else {
+                            found.put(key, entry.getValue());
                         }
                     }
-                    return ret;
+                    // all chunked values share one bulk get on what is left of the deadline.
+                    if (chunked != null) {
+                        found.putAll(unchunkAll(chunked, deadline - System.currentTimeMillis()));
+                    }
                 } catch (Exception e) {
-                    logger.error("timed out", e);
+                    throw new IllegalStateException("bulk get failed", e);
+                }
+                return found;
+            }
+        });
+        return ret == null ? new HashMap<String, Object>() : (Map<String, Object>) ret;
+    }
+
+    public void putMulti(final Map<String, Object> values, final int ttl) {
+        guardedDo(new IDo() {
+            public Object execute(final long waitMillis) {
+                String prefix = getKeyPrefix();
+                List<Future<Boolean>> writes = new ArrayList<Future<Boolean>>(values.size());
+                for (Map.Entry<String, Object> entry : values.entrySet()) {
+                    if (entry.getValue() != null) {
+                        writes.add(clientSet(genKey(prefix, entry.getKey()), ttl, entry.getValue()));
+                        keyIndex.add(entry.getKey(), ttl);
+                    }
+                }
+                writeAll(writes, true, waitMillis);
+                return null;
+            }
+        });
+    }
+
+    public void removeMulti(final Collection<String> keyList) {
+        guardedDo(new IDo() {
+            public Object execute(final long waitMillis) {
+                String prefix = getKeyPrefix();
+                List<Future<Boolean>> writes = new ArrayList<Future<Boolean>>(keyList.size());
+                for (String key : keyList) {
+                    writes.add(clientDelete(genKey(prefix, key)));
+                    keyIndex.remove(key);
+                }
+                writeAll(writes, false, waitMillis);
+                return null;
+            }
+        });
+    }
+
+    protected CompletionStage<String> getKeyPrefixAsync() {
+        if (!prefixedKeys) {
+            return CompletableFuture.completedFuture(poolPrefix);
+        }
+        Namespace ns = namespace;
+        if (ns != null && System.currentTimeMillis() < ns.expires) {
+            return CompletableFuture.completedFuture(ns.prefix);
+        }
+        // a missing namespace is reset with blocking calls, they must not hold up the completer thread.
+        return FutureCompleter.getInstance().complete(clientGet(prefix), getOperationTimeout(), TimeUnit.MILLISECONDS)
+                .thenApplyAsync(new Function<Object, String>() {
+                    public String apply(final Object nsKey) {
+                        if (nsKey == null) {
+                            return poolPrefix + resetPrefixKey() + "#";
+                        }
+                        cacheNamespace(String.valueOf(nsKey));
+                        return poolPrefix + nsKey + "#";
+                    }
+                }, getAsyncExecutor());
+    }
+
+    /**
+     * Runs the blocking continuations of the async calls, started on first use.
+     */
+    protected Executor getAsyncExecutor() {
+        if (asyncExec == null) {
+            synchronized (this) {
+                if (asyncExec == null) {
+                    ThreadPoolExecutor e = new ThreadPoolExecutor(2, 2, 10, TimeUnit.SECONDS,
+                            new ArrayBlockingQueue<Runnable>(1000));
+                    e.allowCoreThreadTimeOut(true);
+                    e.setThreadFactory(new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        public Thread newThread(final Runnable r) {
+                            Thread t = new Thread(r);
+                            t.setName(poolName + "-async-" + count.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+                    asyncExec = e;
+                }
+            }
+        }
+        return asyncExec;
+    }
+
+    public CompletionStage<Object> getAsync(final String key) {
+        if (!breaker.allowRequest()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final long start = System.nanoTime();
+        return getKeyPrefixAsync().thenCompose(new Function<String, CompletionStage<Object>>() {
+            public CompletionStage<Object> apply(final String prefix) {
+                return complete(clientGet(genKey(prefix, key))).thenCompose(
+                        new Function<Object, CompletionStage<Object>>() {
+                    public CompletionStage<Object> apply(final Object ret) {
+                        return unchunkAsync(ret);
+                    }
+                });
+            }
+        }).whenComplete(this.<Object>report(start)).handle(new BiFunction<Object, Throwable, Object>() {
+            public Object apply(final Object ret, final Throwable t) {
+                if (t != null) {
+                    logger.error("timed out", t);
                     return null;
                 }
+                return ret;
+            }
+        });
+    }
 
+    public CompletionStage<Map<String, Object>> getMultiAsync(final Collection<String> keyList) {
+        if (keyList.isEmpty()) {
+            return CompletableFuture.completedFuture((Map<String, Object>) new HashMap<String, Object>());
+        }
+        if (!breaker.allowRequest()) {
+            return CompletableFuture.completedFuture((Map<String, Object>) new HashMap<String, Object>());
+        }
+        final long start = System.nanoTime();
+        final Map<String, String> genKeys = new HashMap<String, String>(keyList.size() * 2);
+        return getKeyPrefixAsync().thenCompose(new Function<String, CompletionStage<Map<String, Object>>>() {
+            public CompletionStage<Map<String, Object>> apply(final String prefix) {
+                for (String key : keyList) {
+                    genKeys.put(genKey(prefix, key), key);
+                }
+                return FutureCompleter.getInstance().complete(clientGetBulk(genKeys.keySet()),
+                        getOperationTimeout(), TimeUnit.MILLISECONDS);
+            }
+        }).whenComplete(this.<Map<String, Object>>report(start))
+                .handle(new BiFunction<Map<String, Object>, Throwable, Map<String, Object>>() {
+            public Map<String, Object> apply(final Map<String, Object> ret, final Throwable t) {
+                Map<String, Object> found = new HashMap<String, Object>(keyList.size() * 2);
+                if (t != null) {
+                    logger.error("timed out", t);
+                    return found;
+                }
+                for (Map.Entry<String, Object> entry : ret.entrySet()) {
+                    String key = genKeys.get(entry.getKey());
+                    if (key != null && entry.getValue() != null) {
+                        found.put(key, entry.getValue());
+                    }
+                }
+                return found;
+            }
+        }).thenCompose(new Function<Map<String, Object>, CompletionStage<Map<String, Object>>>() {
+            public CompletionStage<Map<String, Object>> apply(final Map<String, Object> found) {
+                return unchunkAllAsync(found);
             }
         });
     }
 
-    public List<String> getKeys() {
-        return new ArrayList<String>(keys.keySet());
+    // the chunked values of a bulk get are fetched in parallel, an invalid one drops out of the result.
+    protected CompletionStage<Map<String, Object>> unchunkAllAsync(final Map<String, Object> found) {
+        List<CompletableFuture<Void>> pending = new ArrayList<CompletableFuture<Void>>();
+        for (final Map.Entry<String, Object> entry : found.entrySet()) {
+            if (entry.getValue() instanceof ChunkManifest) {
+                pending.add(unchunkAsync(entry.getValue()).thenAccept(new Consumer<Object>() {
+                    public void accept(final Object value) {
+                        entry.setValue(value);
+                    }
+                }).toCompletableFuture());
+            }
+        }
+        if (pending.isEmpty()) {
+            return CompletableFuture.completedFuture(found);
+        }
+        return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[pending.size()])).handle(
+                new BiFunction<Void, Throwable, Map<String, Object>>() {
+            public Map<String, Object> apply(final Void v, final Throwable t) {
+                Iterator<Map.Entry<String, Object>> it = found.entrySet().iterator();
+                while (it.hasNext()) {
+                    Object value = it.next().getValue();
+                    if (value == null || value instanceof ChunkManifest) {
+                        it.remove();
+                    }
+                }
+                return found;
+            }
+        });
     }
 
-    public void remove(final String key) {
-        retryDo(new IDo() {
-            private static final long serialVersionUID = 1L;
+    public CompletionStage<Void> putAsync(final String key, final Object value, final int ttl) {
+        if (value == null || !breaker.allowRequest()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final long start = System.nanoTime();
+        return getKeyPrefixAsync().thenCompose(new Function<String, CompletionStage<Boolean>>() {
+            public CompletionStage<Boolean> apply(final String prefix) {
+                keyIndex.add(key, ttl);
+                return writeAsync(clientSet(genKey(prefix, key), ttl, value), true);
+            }
+        }).whenComplete(this.<Boolean>report(start)).handle(new BiFunction<Boolean, Throwable, Void>() {
+            public Void apply(final Boolean ok, final Throwable t) {
+                if (t != null) {
+                    logger.error("failed to store " + key, t);
+                }
+                return null;
+            }
+        });
+    }
 
-            public Object execute() {
-                getClient().delete(genKey(key));
-                keys.remove(key);
+    public CompletionStage<Void> removeAsync(final String key) {
+        if (!breaker.allowRequest()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final long start = System.nanoTime();
+        return getKeyPrefixAsync().thenCompose(new Function<String, CompletionStage<Boolean>>() {
+            public CompletionStage<Boolean> apply(final String prefix) {
+                keyIndex.remove(key);
+                return writeAsync(clientDelete(genKey(prefix, key)), false);
+            }
+        }).whenComplete(this.<Boolean>report(start)).handle(new BiFunction<Boolean, Throwable, Void>() {
+            public Void apply(final Boolean ok, final Throwable t) {
+                if (t != null) {
+                    logger.error("failed to remove " + key, t);
+                }
                 return null;
             }
         });
     }
 
+    public boolean acquireLease(final String key, final int ttl) {
+        Object ret = guardedDo(new IDo() {
+            public Object execute(final long waitMillis) {
+                try {
+                    // add only stores when the key is absent, memcached settles the race for us.
+                    Future<Boolean> f = clientAdd(genKey(key), ttl, Boolean.TRUE);
+                    return f.get(waitMillis, TimeUnit.MILLISECONDS);
+                } catch (Exception e) {
+                    logger.error("timed out", e);
+                    return Boolean.FALSE;
+                }
+            }
+        });
+        return Boolean.TRUE.equals(ret);
+    }
+
+    public void releaseLease(final String key) {
+        guardedDo(new IDo() {
+            public Object execute(final long waitMillis) {
+                clientDelete(genKey(key));
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Only the keys this node has seen, as far as the key index tracks them, see getKeyIndex().getAccuracy().
+     */
+    public List<String> getKeys() {
+        return keyIndex.getKeys();
+    }
+
+    public KeyPage scanKeys(final String prefix, final String token, final int pageSize) {
+        return keyIndex.scanKeys(prefix, token, pageSize);
+    }
+
+    public IKeyIndex getKeyIndex() {
+        return keyIndex;
+    }
+
+    /**
+     * Defaults to a BoundedKeyIndex holding up to Memcache.DEFAULT_INDEXED_KEYS entries. NoKeyIndex turns
+     * tracking off, BloomKeyIndex only answers membership.
+     */
+    public void setKeyIndex(final IKeyIndex keyIndex) {
+        this.keyIndex = keyIndex;
+    }
+
+    public void remove(final String key) {
+        retryOp(KeyOp.DELETE, key, null, 0);
+    }
+
     @SuppressWarnings("unchecked")
     public Map stats() {
         return getClient().getStats();
     }
 
-    protected String getStatKey(final String key) {
-        return (String) retryDo(new IDo() {
-            private static final long serialVersionUID = 1L;
-
-            @SuppressWarnings("unchecked")
-            public Object execute() {
-                for (Map.Entry element : getClient().getStats().entrySet()) {
-                    Map.Entry entry = element;
-                    Map<String, String> val = (Map<String, String>) entry.getValue();
-                    return val.get(key);
+    public synchronized ClusterStatsCollector getStatsCollector() {
+        if (statsCollector == null) {
+            statsCollector = new ClusterStatsCollector(new ClusterStatsCollector.IStatsSource() {
+                public Map<String, Map<String, String>> fetchStats() {
+                    // every client of the pool talks to the same servers, one of them is enough.
+                    Map<String, Map<String, String>> ret = new HashMap<String, Map<String, String>>();
+                    for (Map.Entry<SocketAddress, Map<String, String>> entry : getClient().getStats().entrySet()) {
+                        ret.put(String.valueOf(entry.getKey()), entry.getValue());
+                    }
+                    return ret;
                 }
-                return "";
-            }
-        });
+            }, config.getStatsInterval());
+        }
+        return statsCollector;
+    }
+
+    /**
+     * @return the stat summed over every server, from the last background poll.
+     */
+    protected String getStatKey(final String key) {
+        return String.valueOf(getStatsCollector().getTotal(key));
     }
 
     public long getCacheEvictions() {
-        return Long.valueOf(getStatKey("evictions"));
+        return getStatsCollector().getTotal("evictions");
     }
 
     public long getCacheMisses() {
-        return Long.valueOf(getStatKey("get_misses"));
+        return getStatsCollector().getTotal("get_misses");
     }
 
     public long getCacheHits() {
-        return Long.valueOf(getStatKey("get_hits"));
+        return getStatsCollector().getTotal("get_hits");
     }
 
     public long getCacheElements() {
-        // memcachedb does not have this
-        String str = getStatKey("curr_items");
-        if (str != null && !str.equals("")) {
-            return Long.valueOf(str);
-        } else {
-            return 0;
-        }
+        // memcachedb does not have this, it adds up to 0.
+        return getStatsCollector().getTotal("curr_items");
     }
 
     public long getCacheBytes() {
         // memcachedb does not have this
-        String str = getStatKey("bytes");
-        if (str != null && !str.equals("")) {
-            return Long.valueOf(str);
-        } else {
-            return 0;
-        }
+        return getStatsCollector().getTotal("bytes");
     }
 
     public void disconnect() {
-        getClient().shutdown();
+        synchronized (this) {
+            if (statsCollector != null) {
+                statsCollector.stop();
+            }
+            if (asyncExec != null) {
+                asyncExec.shutdown();
+            }
+        }
+        for (MemcachedClient client : memPool) {
+            client.shutdown();
+        }
     }
 
     public String getPoolName() {
@@ -275,6 +1193,8 @@ public class Memcache2 implements ICache, ICacheStat, IDistributedCache, ISuppor
 
     public void setPoolName(final String poolName) {
         this.poolName = poolName;
+        this.poolPrefix = poolName + "#";
+        this.namespace = null;
     }
 
     public boolean keyExists(final String key) {
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2009 Victor Igumnov <victori@fabulously40.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.base.cache;
+
+import net.spy.memcached.ConnectionFactoryBuilder;
+
+/**
+ * Connection settings for Memcache2, read once when the clients are created.
+ */
+public class MemcacheClientConfig {
+	public enum Selection {
+		// pick any client, ThreadLocalRandom so there is no shared state to contend on.
+		RANDOM,
+		// the client with the fewest operations in flight.
+		LEAST_LOADED,
+		// a thread always talks to the same client.
+		THREAD_AFFINITY
+	}
+
+	public enum WriteMode {
+		// sets and deletes wait for the server's answer.
+		ACKNOWLEDGED,
+		// sets and deletes return once queued, failures only show up in Memcache2.getFailedWriteCount().
+		FIRE_AND_FORGET
+	}
+
+	private int poolSize = 1;
+	private Selection selection = Selection.RANDOM;
+	private int opQueueSize = 16384;
+	private long opQueueMaxBlockTime = 10000;
+	private long operationTimeout = 2000;
+	private long requestBudget = 2000;
+	private boolean hedgedReads = false;
+	private double hedgePercentile = 95;
+	private long minHedgeDelay = 1;
+	private long statsInterval = 10000;
+	private ConnectionFactoryBuilder.Protocol protocol = ConnectionFactoryBuilder.Protocol.TEXT;
+	private WriteMode writeMode = WriteMode.FIRE_AND_FORGET;
+	private Compression compression;
+	private int chunkSize = 1000000;
+
+	public int getPoolSize() {
+		return poolSize;
+	}
+
+	/**
+	 * Number of spymemcached clients, each with its own connections and operation queue.
+	 */
+	public void setPoolSize(final int poolSize) {
+		this.poolSize = poolSize;
+	}
+
+	public Selection getSelection() {
+		return selection;
+	}
+
+	public void setSelection(final Selection selection) {
+		this.selection = selection;
+	}
+
+	public int getOpQueueSize() {
+		return opQueueSize;
+	}
+
+	/**
+	 * Capacity of each client's operation queue.
+	 */
+	public void setOpQueueSize(final int opQueueSize) {
+		this.opQueueSize = opQueueSize;
+	}
+
+	public long getOpQueueMaxBlockTime() {
+		return opQueueMaxBlockTime;
+	}
+
+	/**
+	 * How long adding an operation may block on a full queue, in milliseconds.
+	 */
+	public void setOpQueueMaxBlockTime(final long opQueueMaxBlockTime) {
+		this.opQueueMaxBlockTime = opQueueMaxBlockTime;
+	}
+
+	public long getOperationTimeout() {
+		return operationTimeout;
+	}
+
+	/**
+	 * How long an operation may take before it is given up on, in milliseconds.
+	 */
+	public void setOperationTimeout(final long operationTimeout) {
+		this.operationTimeout = operationTimeout;
+	}
+
+	public long getRequestBudget() {
+		return requestBudget;
+	}
+
+	/**
+	 * Total time a call may spend across all of its retries, in milliseconds. A timeout is not retried
+	 * when what is left of the budget would not cover a normal read.
+	 */
+	public void setRequestBudget(final long requestBudget) {
+		this.requestBudget = requestBudget;
+	}
+
+	public boolean isHedgedReads() {
+		return hedgedReads;
+	}
+
+	/**
+	 * When a get has not answered within the hedge percentile of recent reads, send it again on another
+	 * client of the pool and take whichever answers first.
+	 */
+	public void setHedgedReads(final boolean hedgedReads) {
+		this.hedgedReads = hedgedReads;
+	}
+
+	public double getHedgePercentile() {
+		return hedgePercentile;
+	}
+
+	public void setHedgePercentile(final double hedgePercentile) {
+		this.hedgePercentile = hedgePercentile;
+	}
+
+	public long getMinHedgeDelay() {
+		return minHedgeDelay;
+	}
+
+	/**
+	 * Lower bound of the hedge delay in milliseconds, so a very fast pool does not hedge every read.
+	 */
+	public void setMinHedgeDelay(final long minHedgeDelay) {
+		this.minHedgeDelay = minHedgeDelay;
+	}
+
+	public long getStatsInterval() {
+		return statsInterval;
+	}
+
+	/**
+	 * How often the cluster stats behind ICacheStat are polled, in milliseconds.
+	 */
+	public void setStatsInterval(final long statsInterval) {
+		this.statsInterval = statsInterval;
+	}
+
+	public ConnectionFactoryBuilder.Protocol getProtocol() {
+		return protocol;
+	}
+
+	/**
+	 * TEXT or BINARY, keys are distributed with ketama either way.
+	 */
+	public void setProtocol(final ConnectionFactoryBuilder.Protocol protocol) {
+		this.protocol = protocol;
+	}
+
+	public WriteMode getWriteMode() {
+		return writeMode;
+	}
+
+	/**
+	 * Defaults to FIRE_AND_FORGET, writes never wait on the server as before write modes existed.
+	 */
+	public void setWriteMode(final WriteMode writeMode) {
+		this.writeMode = writeMode;
+	}
+
+	public Compression getCompression() {
+		return compression;
+	}
+
+	/**
+	 * Replaces spymemcached's built in gzip above 16k with this compression, null keeps spymemcached's.
+	 */
+	public void setCompression(final Compression compression) {
+		this.compression = compression;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Encoded values above this many bytes are split over several items. Keep it under the server's item
+	 * size limit (-I, 1MB by default) minus the item overhead.
+	 */
+	public void setChunkSize(final int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2009 Victor Igumnov <victori@fabulously40.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.base.cache;
+
+public class MySQLDialect extends SQLDialect {
+
+	@Override
+	protected String getBlobType() {
+		return "mediumblob";
+	}
+
+	@Override
+	protected String getTimestampType() {
+		return "timestamp null";
+	}
+
+	@Override
+	public String upsert(final String table) {
+		return "insert into " + table + " (cache_key,cache_data,created,updated,are_bytes,expires_at)"
+				+ " values (?,?,now(),now(),?,?) on duplicate key update cache_data=values(cache_data),"
+				+ "are_bytes=values(are_bytes),updated=values(updated),expires_at=values(expires_at)";
+	}
+
+	// mysql cannot select from the table it deletes from, but its delete takes a limit.
+	@Override
+	public String purgeExpired(final String table) {
+		return "delete from " + table + " where expires_at>0 and expires_at<? limit ?";
+	}
+
+	@Override
+	public String insertLease(final String table) {
+		return "insert ignore into " + table + " (lease_key,expires_at) values (?,?)";
+	}
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2009 Victor Igumnov <victori@fabulously40.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.base.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tracks nothing, for nodes that never call getKeys().
+ */
+public class NoKeyIndex implements IKeyIndex {
+
+	public void add(final String key, final int ttl) {
+	}
+
+	public void remove(final String key) {
+	}
+
+	public void clear() {
+	}
+
+	public boolean mightContain(final String key) {
+		return true;
+	}
+
+	public List<String> getKeys() {
+		return new ArrayList<String>();
+	}
+
+	public KeyPage scanKeys(final String prefix, final String token, final int pageSize) {
+		KeyPage.checkPageSize(pageSize);
+		return KeyPage.empty();
+	}
+
+	public Accuracy getAccuracy() {
+		return Accuracy.NONE;
+	}
+
+	public long size() {
+		return 0;
+	}
+}
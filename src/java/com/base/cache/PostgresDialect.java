@@ -0,0 +1,42 @@
+/*
+ * Copyright 2009 Victor Igumnov <victori@fabulously40.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.base.cache;
+
+public class PostgresDialect extends SQLDialect {
+
+	@Override
+	protected String getBlobType() {
+		return "bytea";
+	}
+
+	@Override
+	protected String getTimestampType() {
+		return "timestamp without time zone";
+	}
+
+	@Override
+	public String upsert(final String table) {
+		return "insert into " + table + " (cache_key,cache_data,created,updated,are_bytes,expires_at)"
+				+ " values (?,?,now(),now(),?,?) on conflict (cache_key) do update set cache_data=excluded.cache_data,"
+				+ "are_bytes=excluded.are_bytes,updated=excluded.updated,expires_at=excluded.expires_at";
+	}
+
+	@Override
+	public String insertLease(final String table) {
+		return "insert into " + table + " (lease_key,expires_at) values (?,?) on conflict do nothing";
+	}
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2009 Victor Igumnov <victori@fabulously40.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.base.cache;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.Transcoder;
+
+/**
+ * Hands CachedData through untouched, for values that were already encoded or are decoded later.
+ */
+public class RawTranscoder implements Transcoder<CachedData> {
+	public static final RawTranscoder INSTANCE = new RawTranscoder();
+
+	public boolean asyncDecode(final CachedData d) {
+		return false;
+	}
+
+	public CachedData encode(final CachedData d) {
+		return d;
+	}
+
+	public CachedData decode(final CachedData d) {
+		return d;
+	}
+
+	public int getMaxSize() {
+		return Integer.MAX_VALUE;
+	}
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2009 Victor Igumnov <victori@fabulously40.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.base.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Keeps registered hot keys loaded by reloading them on a timer before their TTL runs out, so readers
+ * never pay the fetch. Reloads are jittered so keys registered together do not reload together, and
+ * a key read less than the minimum read rate between two reloads is dropped from the registry.
+ * Reads through CacheLayer.get and CacheLayer.addOrReplace are counted, reads straight off the
+ * ICache are not, so a key only read that way goes cold at its first reload.
+ */
+public class RefreshAheadRegistry {
+	private static transient Logger logger = LoggerFactory.getLogger(RefreshAheadRegistry.class);
+	private final ConcurrentHashMap<CacheLayer.FlightKey, Entry> entries = new ConcurrentHashMap<CacheLayer.FlightKey, Entry>();
+	private final ScheduledThreadPoolExecutor scheduler;
+	private volatile double refreshRatio = 0.75;
+	private volatile double jitter = 0.1;
+	private volatile double minReadRate = 1.0;
+
+	private final AtomicLong reloads = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong expired = new AtomicLong();
+
+	public RefreshAheadRegistry(final String name, final int threads) {
+		scheduler = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(final Runnable r) {
+				Thread t = new Thread(r);
+				t.setName(name + "-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		CacheLayer.addRefreshAhead(this);
+	}
+
+	/**
+	 * Keep key loaded: it is loaded right away, then reloaded every ttl * refreshRatio seconds give or
+	 * take the jitter.
+	 */
+	public void register(final ICache cache, final String key, final IFetch fetch, final int ttl) {
+		if (ttl <= 0) {
+			throw new IllegalArgumentException("refresh ahead needs a ttl");
+		}
+		CacheLayer.FlightKey flightKey = new CacheLayer.FlightKey(cache, key);
+		final Entry entry = new Entry(flightKey, cache, key, fetch, ttl);
+		if (entries.putIfAbsent(flightKey, entry) == null && !scheduler.isShutdown()) {
+			scheduler.execute(new Runnable() {
+				public void run() {
+					load(entry);
+				}
+			});
+		}
+	}
+
+	public void unregister(final ICache cache, final String key) {
+		entries.remove(new CacheLayer.FlightKey(cache, key));
+	}
+
+	public boolean isRegistered(final ICache cache, final String key) {
+		return entries.containsKey(new CacheLayer.FlightKey(cache, key));
+	}
+
+	public Object get(final ICache cache, final String key) {
+		return CacheLayer.get(cache, key);
+	}
+
+	public Object addOrReplace(final ICache cache, final String key, final IFetch fetch, final int ttl) {
+		return CacheLayer.addOrReplace(cache, key, fetch, ttl);
+	}
+
+	public void recordRead(final ICache cache, final String key) {
+		Entry entry = entries.get(new CacheLayer.FlightKey(cache, key));
+		if (entry != null) {
+			entry.reads.incrementAndGet();
+		}
+	}
+
+	protected void schedule(final Entry entry) {
+		if (scheduler.isShutdown()) {
+			return;
+		}
+		double base = entry.ttl * 1000.0 * refreshRatio;
+		double spread = base * jitter * (ThreadLocalRandom.current().nextDouble() * 2 - 1);
+		long delay = Math.max(1, (long) (base + spread));
+		scheduler.schedule(new Runnable() {
+			public void run() {
+				reload(entry);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	protected void reload(final Entry entry) {
+		if (entries.get(entry.flightKey) != entry) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		double seconds = Math.max(0.001, (now - entry.lastReload) / 1000.0);
+		long reads = entry.reads.getAndSet(0);
+		entry.lastReload = now;
+		if (reads / seconds < minReadRate) {
+			// gone cold, let it expire like any other key.
+			entries.remove(entry.flightKey, entry);
+			expired.incrementAndGet();
+			logger.debug("Key " + entry.key + " went cold, no longer refreshed ahead.");
+			return;
+		}
+		load(entry);
+	}
+
+	protected void load(final Entry entry) {
+		if (entries.get(entry.flightKey) != entry) {
+			return;
+		}
+		final long start = System.currentTimeMillis();
+		if (entry.fetch instanceof ICompletableFetch) {
+			try {
+				// write and reschedule once the loader completes, the timer thread moves on.
+				((ICompletableFetch) entry.fetch).fetchAsync().whenComplete(new BiConsumer<Object, Throwable>() {
+					public void accept(final Object val, final Throwable t) {
+						if (t != null) {
+							failures.incrementAndGet();
+							logger.error("refresh ahead of " + entry.key + " failed", t);
+						} else {
+							store(entry, val, start);
+						}
+						schedule(entry);
+					}
+				});
+			} catch (Exception e) {
+				failures.incrementAndGet();
+				logger.error("refresh ahead of " + entry.key + " failed", e);
+				schedule(entry);
+			}
+			return;
+		}
+		try {
+			store(entry, entry.fetch.getObject(), start);
+		} catch (Exception e) {
+			failures.incrementAndGet();
+			logger.error("refresh ahead of " + entry.key + " failed", e);
+		}
+		schedule(entry);
+	}
+
+	protected void store(final Entry entry, final Object val, final long start) {
+		if (val != null && CacheLayer.useEnvelope(0)) {
+			CacheLayer.putEnvelope(entry.cache, entry.key, val, entry.ttl, 0, System.currentTimeMillis() - start);
+		} else if (val != null) {
+			entry.cache.put(entry.key, val, entry.ttl);
+		}
+		reloads.incrementAndGet();
+	}
+
+	public void shutdown() {
+		CacheLayer.removeRefreshAhead(this);
+		entries.clear();
+		scheduler.shutdownNow();
+	}
+
+	/**
+	 * Fraction of the ttl after which a key is reloaded, 0.75 by default.
+	 */
+	public void setRefreshRatio(final double refreshRatio) {
+		this.refreshRatio = refreshRatio;
+	}
+
+	public double getRefreshRatio() {
+		return refreshRatio;
+	}
+
+	/**
+	 * Fraction of the reload interval randomly added or taken off each reload, 0.1 by default.
+	 */
+	public void setJitter(final double jitter) {
+		this.jitter = jitter;
+	}
+
+	public double getJitter() {
+		return jitter;
+	}
+
+	/**
+	 * Reads per second below which a key is considered cold and unregistered, 1.0 by default.
+	 */
+	public void setMinReadRate(final double minReadRate) {
+		this.minReadRate = minReadRate;
+	}
+
+	public double getMinReadRate() {
+		return minReadRate;
+	}
+
+	public int getRegisteredCount() {
+		return entries.size();
+	}
+
+	public long getReloadCount() {
+		return reloads.get();
+	}
+
+	public long getFailureCount() {
+		return failures.get();
+	}
+
+	public long getExpiredCount() {
+		return expired.get();
+	}
+
+	protected static class Entry {
+		private final CacheLayer.FlightKey flightKey;
+		private final ICache cache;
+		private final String key;
+		private final IFetch fetch;
+		private final int ttl;
+		private final AtomicLong reads = new AtomicLong();
+		private volatile long lastReload = System.currentTimeMillis();
+
+		public Entry(final CacheLayer.FlightKey flightKey, final ICache cache, final String key, final IFetch fetch, final int ttl) {
+			this.flightKey = flightKey;
+			this.cache = cache;
+			this.key = key;
+			this.fetch = fetch;
+			this.ttl = ttl;
+		}
+	}
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright 2009 Victor Igumnov <victori@fabulously40.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.base.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs background cache refreshes on a bounded queue, the key read most while queued first and oldest
+ * first among equals. Reads are reported through recordRead. A key already queued or running is not queued again. When the queue is full the oldest pending
+ * refresh is dropped, or the caller runs the refresh itself. A refresh that never runs, dropped or
+ * cut off by shutdown, has its onDrop callback run so whatever the submitter holds for it is let go.
+ */
+public class RefreshScheduler {
+	private static transient Logger logger = LoggerFactory.getLogger(RefreshScheduler.class);
+
+	public enum OverflowPolicy {
+		DROP_OLDEST, CALLER_RUNS
+	}
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	// insertion order, the first entry is the oldest. Small enough to scan for the hottest.
+	private final Map<Object, Task> pending = new LinkedHashMap<Object, Task>();
+	private final Set<Object> running = new HashSet<Object>();
+	private final ArrayDeque<Runnable> continuations = new ArrayDeque<Runnable>();
+	private final Executor continuationExecutor = new Executor() {
+		public void execute(final Runnable command) {
+			continueWith(command);
+		}
+	};
+	private final int maxQueue;
+	private final OverflowPolicy policy;
+	private final Thread[] workers;
+	private volatile boolean shutdown = false;
+
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong deduplicated = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong callerRuns = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+	private final AtomicLong totalLatencyNanos = new AtomicLong();
+
+	public RefreshScheduler(final String name, final int threads, final int maxQueue, final OverflowPolicy policy) {
+		this.maxQueue = maxQueue;
+		this.policy = policy;
+		this.workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(new Runnable() {
+				public void run() {
+					work();
+				}
+			});
+			workers[i].setName(name + "-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	public boolean submit(final Object key, final Runnable refresh) {
+		return submit(key, refresh, null);
+	}
+
+	/**
+	 * @param onDrop run instead of the refresh if it is dropped from a full queue or the scheduler is
+	 * shut down before it ran, may be null. Not run when the refresh is folded into one queued or running.
+	 * @return false if the refresh was folded into one already queued or running, or could not be queued.
+	 */
+	public boolean submit(final Object key, final Runnable refresh, final Runnable onDrop) {
+		Task overflow = null;
+		Task drop = null;
+		boolean accepted = true;
+		lock.lock();
+		try {
+			if (shutdown) {
+				drop = new Task(key, refresh, onDrop);
+				accepted = false;
+			} else if (pending.containsKey(key) || running.contains(key)) {
+				deduplicated.incrementAndGet();
+				return false;
+			} else {
+				submitted.incrementAndGet();
+				Task task = new Task(key, refresh, onDrop);
+				if (pending.size() >= maxQueue) {
+					if (policy == OverflowPolicy.CALLER_RUNS) {
+						running.add(key);
+						overflow = task;
+					} else {
+						Iterator<Task> oldest = pending.values().iterator();
+						drop = oldest.next();
+						oldest.remove();
+						dropped.incrementAndGet();
+						logger.debug("Refresh queue full, dropped refresh of " + drop.key);
+					}
+				}
+				if (overflow == null) {
+					pending.put(key, task);
+					notEmpty.signal();
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (drop != null) {
+			abandon(drop);
+		}
+		if (overflow != null) {
+			callerRuns.incrementAndGet();
+			execute(overflow);
+		}
+		return accepted;
+	}
+
+	/**
+	 * Counts a read of a key, which moves its refresh ahead of colder ones if it is queued.
+	 */
+	public void recordRead(final Object key) {
+		lock.lock();
+		try {
+			Task task = pending.get(key);
+			if (task != null) {
+				task.hits++;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Runs the blocking tail of a completable refresh, such as its cache write, on the workers instead of
+	 * the thread that completed the load. It goes ahead of queued refreshes, after shutdown the caller runs it.
+	 */
+	public Executor getContinuationExecutor() {
+		return continuationExecutor;
+	}
+
+	protected void continueWith(final Runnable command) {
+		lock.lock();
+		try {
+			if (!shutdown) {
+				continuations.add(command);
+				notEmpty.signal();
+				return;
+			}
+		} finally {
+			lock.unlock();
+		}
+		runContinuation(command);
+	}
+
+	protected void runContinuation(final Runnable command) {
+		try {
+			command.run();
+		} catch (Throwable t) {
+			logger.error("refresh continuation failed", t);
+		}
+	}
+
+	protected void abandon(final Task task) {
+		if (task.onDrop == null) {
+			return;
+		}
+		try {
+			task.onDrop.run();
+		} catch (Throwable t) {
+			logger.error("cleanup of dropped refresh of " + task.key + " failed", t);
+		}
+	}
+
+	protected void work() {
+		while (!shutdown) {
+			Task task = null;
+			Runnable continuation;
+			lock.lock();
+			try {
+				while (pending.isEmpty() && continuations.isEmpty() && !shutdown) {
+					notEmpty.await();
+				}
+				if (shutdown) {
+					return;
+				}
+				continuation = continuations.poll();
+				if (continuation == null) {
+					for (Task t : pending.values()) {
+						if (task == null || t.hits > task.hits) {
+							task = t;
+						}
+					}
+					pending.remove(task.key);
+					running.add(task.key);
+				}
+			} catch (InterruptedException e) {
+				return;
+			} finally {
+				lock.unlock();
+			}
+			if (continuation != null) {
+				runContinuation(continuation);
+			} else {
+				execute(task);
+			}
+		}
+	}
+
+	/**
+	 * An ICompletableRefresh only frees the worker, its key stays running until its stage completes.
+	 */
+	protected void execute(final Task task) {
+		totalWaitNanos.addAndGet(System.nanoTime() - task.submitted);
+		if (task.refresh instanceof ICompletableRefresh) {
+			CompletionStage<Void> stage;
+			try {
+				stage = ((ICompletableRefresh) task.refresh).refreshAsync();
+			} catch (Throwable t) {
+				finish(task, t);
+				return;
+			}
+			stage.whenComplete(new BiConsumer<Void, Throwable>() {
+				public void accept(final Void v, final Throwable t) {
+					finish(task, t);
+				}
+			});
+			return;
+		}
+		Throwable failure = null;
+		try {
+			task.refresh.run();
+		} catch (Throwable t) {
+			failure = t;
+		}
+		finish(task, failure);
+	}
+
+	protected void finish(final Task task, final Throwable failure) {
+		if (failure == null) {
+			completed.incrementAndGet();
+		} else {
+			failed.incrementAndGet();
+			logger.error("refresh of " + task.key + " failed", failure);
+		}
+		totalLatencyNanos.addAndGet(System.nanoTime() - task.submitted);
+		lock.lock();
+		try {
+			running.remove(task.key);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops the workers once their current refresh is done. Refreshes still queued are dropped, continuations
+	 * of loads already done are run by the caller.
+	 */
+	public void shutdown() {
+		List<Task> dropped;
+		List<Runnable> left;
+		lock.lock();
+		try {
+			shutdown = true;
+			dropped = new ArrayList<Task>(pending.values());
+			pending.clear();
+			left = new ArrayList<Runnable>(continuations);
+			continuations.clear();
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		for (Task task : dropped) {
+			abandon(task);
+		}
+		for (Runnable command : left) {
+			runContinuation(command);
+		}
+	}
+
+	public int getQueueDepth() {
+		lock.lock();
+		try {
+			return pending.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getMaxQueue() {
+		return maxQueue;
+	}
+
+	public OverflowPolicy getPolicy() {
+		return policy;
+	}
+
+	public long getSubmittedCount() {
+		return submitted.get();
+	}
+
+	public long getDeduplicatedCount() {
+		return deduplicated.get();
+	}
+
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	public long getCallerRunsCount() {
+		return callerRuns.get();
+	}
+
+	public long getCompletedCount() {
+		return completed.get();
+	}
+
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	/**
+	 * @return average time a refresh spent queued, in milliseconds.
+	 */
+	public double getAverageQueueWait() {
+		long done = completed.get() + failed.get();
+		return done == 0 ? 0 : totalWaitNanos.get() / 1000000.0 / done;
+	}
+
+	/**
+	 * @return average time from submit until the refresh finished, in milliseconds.
+	 */
+	public double getAverageRefreshLatency() {
+		long done = completed.get() + failed.get();
+		return done == 0 ? 0 : totalLatencyNanos.get() / 1000000.0 / done;
+	}
+
+	protected static class Task {
+		private final Object key;
+		private final Runnable refresh;
+		private final Runnable onDrop;
+		private final long submitted = System.nanoTime();
+		// reads while queued, guarded by the scheduler lock.
+		private int hits;
+
+		public Task(final Object key, final Runnable refresh, final Runnable onDrop) {
+			this.key = key;
+			this.refresh = refresh;
+			this.onDrop = onDrop;
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2009 Victor Igumnov <victori@fabulously40.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.base.cache;
+
+/**
+ * The SQL DBCache runs that differs between databases. Every write is a single statement, so concurrent
+ * writers of the same key cannot interleave between a lookup and an insert.
+ */
+public abstract class SQLDialect {
+
+	/**
+	 * @return the dialect for a jdbc url, PostgreSQL unless the url names MySQL, MariaDB or H2.
+	 */
+	public static SQLDialect forUrl(final String jdbcUrl) {
+		String url = jdbcUrl.toLowerCase();
+		if (url.startsWith("jdbc:mysql:") || url.startsWith("jdbc:mariadb:")) {
+			return new MySQLDialect();
+		}
+		if (url.startsWith("jdbc:h2:")) {
+			return new H2Dialect();
+		}
+		return new PostgresDialect();
+	}
+
+	protected abstract String getBlobType();
+
+	protected abstract String getTimestampType();
+
+	public String createStoreTable(final String table) {
+		return "create table if not exists " + table + " (cache_key varchar(255) not null primary key,cache_data "
+				+ getBlobType() + ",created " + getTimestampType() + ",updated " + getTimestampType()
+				+ ",are_bytes boolean not null,expires_at bigint not null default 0)";
+	}
+
+	/**
+	 * Adds expires_at to a store table created before it existed. Fails when the column is already there.
+	 */
+	public String addExpiresColumn(final String table) {
+		return "alter table " + table + " add column expires_at bigint not null default 0";
+	}
+
+	public String createExpiresIndex(final String table) {
+		return "create index " + table + "_expires on " + table + " (expires_at)";
+	}
+
+	/**
+	 * Deletes up to a batch of expired rows, parameters are the current time in millis and the batch size.
+	 * Rows that never expire hold 0 and stay out of the index range.
+	 */
+	public String purgeExpired(final String table) {
+		return "delete from " + table + " where cache_key in (select cache_key from " + table
+				+ " where expires_at>0 and expires_at<? limit ?)";
+	}
+
+	public String createLeaseTable(final String table) {
+		return "create table if not exists " + table + " (lease_key varchar(255) not null primary key,"
+				+ "expires_at bigint not null)";
+	}
+
+	/**
+	 * Inserts or replaces a value, parameters are cache_key, cache_data, are_bytes and expires_at.
+	 */
+	public abstract String upsert(String table);
+
+	/**
+	 * Inserts a lease unless one exists, parameters are lease_key and expires_at. A dialect without an
+	 * insert-if-absent may plain insert, a duplicate key violation then counts as a lease held elsewhere.
+	 */
+	public abstract String insertLease(String table);
+
+	/**
+	 * One page of a keyset scan in key order, parameters are the token (keys after it), the prefix (keys from
+	 * it on), when bounded the end of the prefix range (keys before it), a like pattern escaped with '!', the
+	 * current time in millis and the row limit. The bounds keep the index range to the prefix, the like only
+	 * filters within it.
+	 */
+	public String scanKeys(final String table, final boolean bounded) {
+		return "select cache_key from " + table + " where cache_key>? and cache_key>=?" + (bounded ? " and cache_key<?" : "")
+				+ " and cache_key like ? escape '!' and (expires_at=0 or expires_at>?) order by cache_key limit ?";
+	}
+
+	/**
+	 * @return the smallest key after every key starting with prefix, null when there is none.
+	 */
+	public static String prefixEnd(final String prefix) {
+		if (prefix == null) {
+			return null;
+		}
+		int end = prefix.length();
+		while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+			end--;
+		}
+		if (end == 0) {
+			return null;
+		}
+		return prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+	}
+
+	public String truncate(final String table) {
+		return "truncate table " + table;
+	}
+}
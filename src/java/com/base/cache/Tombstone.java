@@ -0,0 +1,43 @@
+/*
+ * Copyright 2009 Victor Igumnov <victori@fabulously40.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.base.cache;
+
+import java.io.Serializable;
+
+/**
+ * Marks a key the loader reported as absent. Tiers store and return it like any other value, so a
+ * read of a tombstone is a definite "not there" rather than a miss that goes back to the loader.
+ */
+public class Tombstone implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private final int ttl;
+
+	public Tombstone(final int ttl) {
+		this.ttl = ttl;
+	}
+
+	public static boolean isTombstone(final Object o) {
+		return o instanceof Tombstone;
+	}
+
+	/**
+	 * @return the ttl the tombstone was written with, tiers copying it never keep it longer.
+	 */
+	public int getTTL() {
+		return ttl;
+	}
+}
@@ -0,0 +1,193 @@
+package com.base.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+import org.junit.Test;
+
+import com.base.cache.AsyncCache;
+import com.base.cache.BlockingCacheAdapter;
+import com.base.cache.CircuitBreaker;
+import com.base.cache.Ehcache;
+import com.base.cache.KeyPage;
+
+public class AsyncCacheTest {
+
+	@Test
+	public void testGetMultiFillsSecondLevel() {
+		Ehcache primary = new Ehcache("async-test-primary");
+		Ehcache secondary = new Ehcache("async-test-secondary");
+		primary.clear();
+		secondary.clear();
+		AsyncCache cache = new AsyncCache(primary, secondary, false, 60);
+
+		primary.put("a", "1");
+		primary.put("b", "2");
+		secondary.put("c", "3");
+
+		Map<String,Object> found = cache.getMulti(Arrays.asList("a", "b", "c", "d"));
+		assertEquals(3, found.size());
+		assertEquals("1", found.get("a"));
+		assertEquals("3", found.get("c"));
+		assertFalse(found.containsKey("d"));
+		assertTrue(secondary.keyExists("a"));
+		assertTrue(secondary.keyExists("b"));
+	}
+
+	@Test
+	public void testPutAndRemoveMulti() {
+		Ehcache primary = new Ehcache("async-test-primary2");
+		Ehcache secondary = new Ehcache("async-test-secondary2");
+		AsyncCache cache = new AsyncCache(primary, secondary, false, 60);
+
+		Map<String,Object> values = new HashMap<String,Object>();
+		values.put("x", "1");
+		values.put("y", "2");
+		cache.putMulti(values, 30);
+		assertEquals("1", primary.get("x"));
+		assertEquals("2", secondary.get("y"));
+
+		cache.removeMulti(Arrays.asList("x", "y"));
+		assertFalse(primary.keyExists("x"));
+		assertFalse(secondary.keyExists("y"));
+	}
+
+	@Test
+	public void testGetAsyncFillsSecondLevel() throws Exception {
+		Ehcache primary = new Ehcache("async-test-primary3");
+		Ehcache secondary = new Ehcache("async-test-secondary3");
+		AsyncCache cache = new AsyncCache(primary, secondary, false, 60);
+
+		primary.put("a", "1");
+		assertEquals("1", cache.getAsync("a").toCompletableFuture().get(5, TimeUnit.SECONDS));
+		assertEquals(null, cache.getAsync("missing").toCompletableFuture().get(5, TimeUnit.SECONDS));
+		// the second level write is fired without waiting on it.
+		for (int i = 0; i < 100 && !secondary.keyExists("a"); i++) {
+			Thread.sleep(10);
+		}
+		assertTrue(secondary.keyExists("a"));
+	}
+
+	@Test
+	public void testOpenBreakerServesSecondLevel() {
+		final AtomicInteger calls = new AtomicInteger();
+		Ehcache primary = new Ehcache("async-test-primary4") {
+			@Override
+			public Object get(final String key) {
+				calls.incrementAndGet();
+				throw new IllegalStateException("down");
+			}
+		};
+		Ehcache secondary = new Ehcache("async-test-secondary4");
+		AsyncCache cache = new AsyncCache(primary, secondary, false, 60);
+		CircuitBreaker breaker = new CircuitBreaker(10);
+		breaker.setMinimumCalls(3);
+		cache.setPrimaryBreaker(breaker);
+		secondary.put("hot", "1");
+
+		for (int i = 0; i < 3; i++) {
+			try {
+				cache.get("cold");
+			} catch (IllegalStateException e) {
+			}
+		}
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertEquals(null, cache.get("cold"));
+		assertEquals("1", cache.get("hot"));
+		assertEquals(3, calls.get());
+	}
+
+	@Test
+	public void testSaturatedAdapterFails() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		Ehcache blocked = new Ehcache("async-test-blocked") {
+			@Override
+			public Object get(final String key) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+				}
+				return "slow";
+			}
+		};
+		BlockingCacheAdapter adapter = new BlockingCacheAdapter(blocked, "saturated", 1, 1);
+		try {
+			CompletableFuture<Object> running = adapter.getAsync("a").toCompletableFuture();
+			CompletableFuture<Object> queued = adapter.getAsync("b").toCompletableFuture();
+			// one thread busy and the one queue slot taken, so these are dropped and fail right away.
+			assertTrue(adapter.getAsync("c").toCompletableFuture().isCompletedExceptionally());
+			assertTrue(adapter.getMultiAsync(Arrays.asList("c", "d")).toCompletableFuture().isCompletedExceptionally());
+			assertTrue(adapter.putAsync("c", "1", 60).toCompletableFuture().isCompletedExceptionally());
+
+			release.countDown();
+			assertEquals("slow", running.get(5, TimeUnit.SECONDS));
+			assertEquals("slow", queued.get(5, TimeUnit.SECONDS));
+		} finally {
+			release.countDown();
+			adapter.shutdown();
+		}
+	}
+
+	@Test
+	public void testScanFallsBackToGetKeys() {
+		Ehcache primary = new Ehcache("async-test-primary6");
+		Ehcache secondary = new Ehcache("async-test-secondary6");
+		AsyncCache cache = new AsyncCache(primary, secondary, false, 60);
+		primary.put("user:b", "1");
+		primary.put("user:a", "2");
+		primary.put("item:1", "3");
+
+		KeyPage page = cache.scanKeys("user:", null, 1);
+		assertEquals(Arrays.asList("user:a"), page.getKeys());
+		page = cache.scanKeys("user:", page.getNextToken(), 1);
+		assertEquals(Arrays.asList("user:b"), page.getKeys());
+	}
+
+	@Test
+	public void testFailingTiersReadAsMiss() throws Exception {
+		Ehcache primary = new Ehcache("async-test-primary5") {
+			@Override
+			public Object get(final String key) {
+				throw new IllegalStateException("down");
+			}
+
+			@Override
+			public Map<String,Object> getMulti(final Collection<String> keys) {
+				throw new IllegalStateException("down");
+			}
+		};
+		Ehcache secondary = new Ehcache("async-test-secondary5");
+		AsyncCache cache = new AsyncCache(primary, secondary, false, 60);
+		CircuitBreaker breaker = new CircuitBreaker(10);
+		breaker.setMinimumCalls(5);
+		cache.setPrimaryBreaker(breaker);
+		secondary.put("hot", "1");
+
+		assertTrue(primary.getAsync("cold").toCompletableFuture().handle(new BiFunction<Object, Throwable, Boolean>() {
+			public Boolean apply(final Object ret, final Throwable t) {
+				return t != null;
+			}
+		}).get(5, TimeUnit.SECONDS));
+		assertEquals(null, cache.getAsync("cold").toCompletableFuture().get(5, TimeUnit.SECONDS));
+		Map<String,Object> found = cache.getMultiAsync(Arrays.asList("hot", "cold")).toCompletableFuture().get(5, TimeUnit.SECONDS);
+		assertEquals(1, found.size());
+		assertEquals("1", found.get("hot"));
+
+		// the failures reach the breaker before they are read as misses.
+		for (int i = 0; i < 5; i++) {
+			cache.getAsync("cold").toCompletableFuture().get(5, TimeUnit.SECONDS);
+		}
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+	}
+}
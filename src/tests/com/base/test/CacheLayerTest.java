@@ -0,0 +1,295 @@
+package com.base.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.DoubleSupplier;
+
+import org.junit.Test;
+
+import com.base.cache.CacheEnvelope;
+import com.base.cache.CacheLayer;
+import com.base.cache.Ehcache;
+import com.base.cache.ICompletableFetch;
+import com.base.cache.IFetch;
+import com.base.cache.RefreshAheadRegistry;
+import com.base.cache.Tombstone;
+
+public class CacheLayerTest {
+
+	@Test
+	public void testSingleFlightCoalescesLoaders() throws Exception {
+		final Ehcache cache = new Ehcache("cachelayer-test-singleflight");
+		cache.clear();
+		final AtomicInteger loads = new AtomicInteger();
+		final IFetch fetch = new IFetch() {
+			public Object getObject() {
+				loads.incrementAndGet();
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+				}
+				return "value";
+			}
+		};
+
+		CacheLayer.setSingleFlight(true);
+		try {
+			long before = CacheLayer.getCoalescedCount();
+			final CountDownLatch start = new CountDownLatch(1);
+			final List<Object> results = new ArrayList<Object>();
+			List<Thread> threads = new ArrayList<Thread>();
+			for (int i = 0; i < 8; i++) {
+				Thread t = new Thread(new Runnable() {
+					public void run() {
+						try {
+							start.await();
+						} catch (InterruptedException e) {
+						}
+						Object ret = CacheLayer.addOrReplace(cache, "hot", fetch, 60);
+						synchronized (results) {
+							results.add(ret);
+						}
+					}
+				});
+				t.start();
+				threads.add(t);
+			}
+			start.countDown();
+			for (Thread t : threads) {
+				t.join();
+			}
+
+			assertEquals(1, loads.get());
+			assertEquals(8, results.size());
+			for (Object ret : results) {
+				assertEquals("value", ret);
+			}
+			assertTrue(CacheLayer.getCoalescedCount() - before > 0);
+		} finally {
+			CacheLayer.setSingleFlight(false);
+		}
+	}
+
+	@Test
+	public void testEnvelopeServesStaleAndRefreshes() throws Exception {
+		final Ehcache cache = new Ehcache("cachelayer-test-envelope");
+		cache.clear();
+		final AtomicInteger loads = new AtomicInteger();
+		IFetch fetch = new IFetch() {
+			public Object getObject() {
+				return "v" + loads.incrementAndGet();
+			}
+		};
+
+		CacheLayer.setEnvelopeMode(true);
+		try {
+			assertEquals("v1", CacheLayer.addOrReplace(cache, "env", fetch, 1, 10));
+			assertTrue(cache.get("env") instanceof CacheEnvelope);
+			assertFalse(cache.keyExists("dp-env"));
+			assertEquals("v1", CacheLayer.get(cache, "env"));
+
+			Thread.sleep(1100);
+			// stale, the old value is served while the refresh runs in the background.
+			assertEquals("v1", CacheLayer.addOrReplace(cache, "env", fetch, 1, 10));
+			for (int i = 0; i < 100 && !"v2".equals(CacheLayer.get(cache, "env")); i++) {
+				Thread.sleep(10);
+			}
+			assertEquals("v2", CacheLayer.addOrReplace(cache, "env", fetch, 1, 10));
+			assertEquals(2, loads.get());
+		} finally {
+			CacheLayer.setEnvelopeMode(false);
+		}
+	}
+
+	@Test
+	public void testXFetchRefreshesEarly() throws Exception {
+		final Ehcache cache = new Ehcache("cachelayer-test-xfetch");
+		cache.clear();
+		final AtomicInteger loads = new AtomicInteger();
+		IFetch fetch = new IFetch() {
+			public Object getObject() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+				}
+				return "v" + loads.incrementAndGet();
+			}
+		};
+
+		CacheLayer.setXFetchMode(true);
+		// a pinned draw of 0.001 weighs the ~50ms fetch by ln(1000), so beta 10000 puts the refresh far
+		// past the 5s soft expiry on every run.
+		CacheLayer.setXFetchBeta(10000);
+		CacheLayer.setXFetchRandom(new DoubleSupplier() {
+			public double getAsDouble() {
+				return 0.001;
+			}
+		});
+		try {
+			long before = CacheLayer.getEarlyRefreshCount();
+			assertEquals("v1", CacheLayer.addOrReplace(cache, "xf", fetch, 5));
+			CacheEnvelope envelope = (CacheEnvelope) cache.get("xf");
+			assertTrue(envelope.getFetchMillis() >= 40);
+
+			assertEquals("v1", CacheLayer.addOrReplace(cache, "xf", fetch, 5));
+			for (int i = 0; i < 100 && loads.get() < 2; i++) {
+				Thread.sleep(10);
+			}
+			assertEquals(1L, CacheLayer.getEarlyRefreshCount() - before);
+			assertEquals(2, loads.get());
+		} finally {
+			CacheLayer.setXFetchMode(false);
+			CacheLayer.setXFetchBeta(1.0);
+			CacheLayer.setXFetchRandom(null);
+		}
+	}
+
+	@Test
+	public void testLeaseIsExclusive() {
+		Ehcache cache = new Ehcache("cachelayer-test-lease");
+		cache.clear();
+		assertTrue(cache.acquireLease("fdp-k", 60));
+		assertFalse(cache.acquireLease("fdp-k", 60));
+		cache.releaseLease("fdp-k");
+		assertTrue(cache.acquireLease("fdp-k", 60));
+	}
+
+	@Test
+	public void testNegativeCaching() {
+		Ehcache cache = new Ehcache("cachelayer-test-negative");
+		cache.clear();
+		final AtomicInteger loads = new AtomicInteger();
+		IFetch fetch = new IFetch() {
+			public Object getObject() {
+				loads.incrementAndGet();
+				return null;
+			}
+		};
+
+		CacheLayer.setNegativeTTL(30);
+		try {
+			assertNull(CacheLayer.addOrReplace(cache, "gone", fetch, 60));
+			assertTrue(Tombstone.isTombstone(cache.get("gone")));
+			assertNull(CacheLayer.addOrReplace(cache, "gone", fetch, 60));
+			assertNull(CacheLayer.get(cache, "gone"));
+			assertEquals(1, loads.get());
+
+			// a lease taken by an earlier stale read is released with the tombstone.
+			assertTrue(cache.acquireLease("fdp-gone2", 60));
+			assertNull(CacheLayer.addOrReplace(cache, "gone2", fetch, 60, 2));
+			assertTrue(Tombstone.isTombstone(cache.get("gone2")));
+			assertTrue(cache.acquireLease("fdp-gone2", 60));
+		} finally {
+			CacheLayer.setNegativeTTL(0);
+		}
+	}
+
+	@Test
+	public void testCompletableFetchWritesOnCompletion() throws Exception {
+		final Ehcache cache = new Ehcache("cachelayer-test-completable");
+		cache.clear();
+		final CompletableFuture<Object> pending = new CompletableFuture<Object>();
+		ICompletableFetch fetch = new ICompletableFetch() {
+			public Object getObject() {
+				return "v1";
+			}
+
+			public CompletionStage<Object> fetchAsync() {
+				return pending;
+			}
+		};
+
+		CacheLayer.setEnvelopeMode(true);
+		try {
+			assertEquals("v1", CacheLayer.addOrReplace(cache, "cf", fetch, 1, 10));
+			Thread.sleep(1100);
+			assertEquals("v1", CacheLayer.addOrReplace(cache, "cf", fetch, 1, 10));
+			// the refresh is waiting on the loader, nothing written yet.
+			Thread.sleep(50);
+			assertEquals("v1", CacheLayer.get(cache, "cf"));
+
+			pending.complete("v2");
+			// the write is handed to the scheduler's workers.
+			for (int i = 0; i < 100 && !"v2".equals(CacheLayer.get(cache, "cf")); i++) {
+				Thread.sleep(10);
+			}
+			assertEquals("v2", CacheLayer.get(cache, "cf"));
+		} finally {
+			CacheLayer.setEnvelopeMode(false);
+		}
+	}
+
+	// records when each load happened, so the test can see the reload interval.
+	private static IFetch timedFetch(final List<Long> loads) {
+		return new IFetch() {
+			public Object getObject() {
+				synchronized (loads) {
+					loads.add(System.currentTimeMillis());
+					return "v" + loads.size();
+				}
+			}
+		};
+	}
+
+	@Test
+	public void testRefreshAheadLoadsAtOnceThenAtRatioOfTtl() throws Exception {
+		Ehcache cache = new Ehcache("cachelayer-test-refreshahead");
+		cache.clear();
+		RefreshAheadRegistry registry = new RefreshAheadRegistry("test-refresh-ahead", 1);
+		registry.setRefreshRatio(0.3);
+		registry.setJitter(0);
+		registry.setMinReadRate(0);
+		List<Long> loads = new ArrayList<Long>();
+		try {
+			long registered = System.currentTimeMillis();
+			registry.register(cache, "k", timedFetch(loads), 1);
+			for (int i = 0; i < 200 && registry.getReloadCount() < 3; i++) {
+				Thread.sleep(10);
+			}
+			assertTrue(registry.getReloadCount() >= 3);
+			synchronized (loads) {
+				// loaded right away, not only after the first interval.
+				assertTrue(loads.get(0) - registered < 200);
+				long interval = loads.get(2) - loads.get(1);
+				assertTrue("reloaded after " + interval + "ms", interval >= 280 && interval < 600);
+			}
+			assertTrue(String.valueOf(CacheLayer.get(cache, "k")).startsWith("v"));
+		} finally {
+			registry.shutdown();
+		}
+	}
+
+	@Test
+	public void testRefreshAheadDropsColdKeysAndCountsPlainReads() throws Exception {
+		Ehcache cache = new Ehcache("cachelayer-test-refreshahead-cold");
+		cache.clear();
+		RefreshAheadRegistry registry = new RefreshAheadRegistry("test-refresh-ahead-cold", 1);
+		registry.setRefreshRatio(0.3);
+		registry.setJitter(0);
+		registry.setMinReadRate(5);
+		try {
+			registry.register(cache, "cold", timedFetch(new ArrayList<Long>()), 1);
+			registry.register(cache, "hot", timedFetch(new ArrayList<Long>()), 1);
+			long until = System.currentTimeMillis() + 500;
+			while (System.currentTimeMillis() < until) {
+				// plain CacheLayer reads, not through the registry.
+				CacheLayer.get(cache, "hot");
+				Thread.sleep(10);
+			}
+			assertFalse(registry.isRegistered(cache, "cold"));
+			assertTrue(registry.isRegistered(cache, "hot"));
+			assertEquals(1L, registry.getExpiredCount());
+		} finally {
+			registry.shutdown();
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package com.base.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+
+import org.junit.Test;
+
+import com.base.cache.ChunkManifest;
+
+public class ChunkManifestTest {
+
+	private static Map<String, CachedData> chunks(final ChunkManifest manifest, final List<byte[]> parts) {
+		Map<String, CachedData> found = new HashMap<String, CachedData>();
+		for (int i = 0; i < parts.size(); i++) {
+			found.put(manifest.getChunkKey(i), new CachedData(0, parts.get(i), Integer.MAX_VALUE));
+		}
+		return found;
+	}
+
+	private static byte[] data(final int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (i * 31);
+		}
+		return data;
+	}
+
+	@Test
+	public void testRoundTrip() {
+		SerializingTranscoder transcoder = new SerializingTranscoder(Integer.MAX_VALUE);
+		transcoder.setCompressionThreshold(Integer.MAX_VALUE);
+		StringBuilder value = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			value.append(i);
+		}
+		CachedData encoded = transcoder.encode(value.toString());
+		byte[] bytes = encoded.getData();
+		List<byte[]> parts = ChunkManifest.split(bytes, 1024);
+		assertEquals((bytes.length + 1023) / 1024, parts.size());
+
+		ChunkManifest manifest = new ChunkManifest("big", 42, parts.size(), bytes.length, encoded.getFlags(),
+				ChunkManifest.crc(bytes));
+		Map<String, CachedData> found = chunks(manifest, parts);
+		found.put("unrelated", new CachedData(0, new byte[3], Integer.MAX_VALUE));
+		byte[] joined = manifest.join(found);
+		assertTrue(Arrays.equals(bytes, joined));
+		assertEquals(value.toString(), transcoder.decode(new CachedData(manifest.getFlags(), joined, Integer.MAX_VALUE)));
+	}
+
+	@Test
+	public void testMissingChunk() {
+		byte[] bytes = data(3000);
+		List<byte[]> parts = ChunkManifest.split(bytes, 1000);
+		ChunkManifest manifest = new ChunkManifest("k", 1, parts.size(), bytes.length, 0, ChunkManifest.crc(bytes));
+		Map<String, CachedData> found = chunks(manifest, parts);
+		found.remove(manifest.getChunkKey(1));
+		assertNull(manifest.join(found));
+	}
+
+	@Test
+	public void testWrongLength() {
+		byte[] bytes = data(3000);
+		List<byte[]> parts = ChunkManifest.split(bytes, 1000);
+		// a chunk that is too long overruns the manifest length, one that is too short leaves it unfilled.
+		ChunkManifest shorter = new ChunkManifest("k", 1, parts.size(), bytes.length - 1, 0, ChunkManifest.crc(bytes));
+		assertNull(shorter.join(chunks(shorter, parts)));
+		ChunkManifest longer = new ChunkManifest("k", 1, parts.size(), bytes.length + 1, 0, ChunkManifest.crc(bytes));
+		assertNull(longer.join(chunks(longer, parts)));
+	}
+
+	@Test
+	public void testCrcMismatch() {
+		byte[] bytes = data(3000);
+		List<byte[]> parts = ChunkManifest.split(bytes, 1000);
+		ChunkManifest manifest = new ChunkManifest("k", 1, parts.size(), bytes.length, 0, ChunkManifest.crc(bytes));
+		parts.get(2)[10] ^= 1;
+		assertNull(manifest.join(chunks(manifest, parts)));
+	}
+
+	@Test
+	public void testChunksOfAnotherWriteDoNotMatch() {
+		byte[] bytes = data(3000);
+		List<byte[]> parts = ChunkManifest.split(bytes, 1000);
+		ChunkManifest older = new ChunkManifest("k", 1, parts.size(), bytes.length, 0, ChunkManifest.crc(bytes));
+		ChunkManifest newer = new ChunkManifest("k", 2, parts.size(), bytes.length, 0, ChunkManifest.crc(bytes));
+		assertNull(older.join(chunks(newer, parts)));
+	}
+}
@@ -0,0 +1,60 @@
+package com.base.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.base.cache.CircuitBreaker;
+
+public class CircuitBreakerTest {
+
+	private CircuitBreaker breaker() {
+		CircuitBreaker breaker = new CircuitBreaker(10);
+		breaker.setMinimumCalls(4);
+		breaker.setOpenDuration(100);
+		breaker.setHalfOpenTrials(2);
+		breaker.setSlowCallThreshold(50);
+		return breaker;
+	}
+
+	@Test
+	public void testTripsOnFailuresAndRecovers() throws Exception {
+		CircuitBreaker breaker = breaker();
+		breaker.onSuccess(10);
+		breaker.onFailure();
+		breaker.onFailure();
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		breaker.onSuccess(10);
+		// 2 of 4 failed, at the 50% threshold.
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertFalse(breaker.allowRequest());
+		assertEquals(1L, breaker.getRejectedCount());
+
+		Thread.sleep(150);
+		assertTrue(breaker.allowRequest());
+		assertTrue(breaker.allowRequest());
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		assertFalse(breaker.allowRequest());
+		breaker.onSuccess(10);
+		breaker.onSuccess(10);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertEquals(1L, breaker.getOpenedCount());
+		assertEquals(1L, breaker.getClosedCount());
+	}
+
+	@Test
+	public void testTripsOnLatencyAndFailedTrialReopens() throws Exception {
+		CircuitBreaker breaker = breaker();
+		for (int i = 0; i < 4; i++) {
+			breaker.onSuccess(60 * 1000);
+		}
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		Thread.sleep(150);
+		assertTrue(breaker.allowRequest());
+		breaker.onFailure();
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertEquals(2L, breaker.getOpenedCount());
+	}
+}
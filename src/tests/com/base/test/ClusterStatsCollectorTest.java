@@ -0,0 +1,46 @@
+package com.base.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.base.cache.ClusterStatsCollector;
+
+public class ClusterStatsCollectorTest {
+
+	@Test
+	public void testSumsServersAndServesFromMemory() throws Exception {
+		final AtomicInteger fetches = new AtomicInteger();
+		ClusterStatsCollector collector = new ClusterStatsCollector(new ClusterStatsCollector.IStatsSource() {
+			public Map<String, Map<String, String>> fetchStats() {
+				int n = fetches.incrementAndGet();
+				Map<String, Map<String, String>> ret = new HashMap<String, Map<String, String>>();
+				ret.put("a:11211", server(10 * n, "1.4.5"));
+				ret.put("b:11211", server(5, "1.4.5"));
+				return ret;
+			}
+		}, 100);
+
+		assertEquals(15L, collector.getTotal("get_hits"));
+		assertEquals(0L, collector.getTotal("missing"));
+		assertEquals(0L, collector.getTotal("version"));
+		assertEquals("5", collector.getServerStats().get("b:11211").get("get_hits"));
+		collector.getTotal("get_hits");
+		assertEquals(1, fetches.get());
+
+		Thread.sleep(250);
+		assertEquals(true, collector.getTotal("get_hits") > 15);
+		collector.stop();
+	}
+
+	private static Map<String, String> server(final int hits, final String version) {
+		Map<String, String> stats = new HashMap<String, String>();
+		stats.put("get_hits", String.valueOf(hits));
+		stats.put("version", version);
+		return stats;
+	}
+}
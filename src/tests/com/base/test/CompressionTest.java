@@ -0,0 +1,94 @@
+package com.base.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+
+import org.junit.Test;
+
+import com.base.cache.CompressingTranscoder;
+import com.base.cache.Compression;
+import com.base.cache.DBCache;
+import com.base.cache.DeflateCompressor;
+import com.base.cache.GzipCompressor;
+
+public class CompressionTest {
+
+	private static byte[] json(final int size) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; sb.length() < size; i++) {
+			sb.append("{\"id\":").append(i).append(",\"name\":\"item\",\"tags\":[\"a\",\"b\"]},");
+		}
+		return sb.toString().getBytes("UTF-8");
+	}
+
+	@Test
+	public void testThresholdAndAlgorithmSwitch() throws Exception {
+		Compression gzip = new Compression(new GzipCompressor(), 1024);
+		assertNull(gzip.compress(json(100)));
+		byte[] data = json(20000);
+		byte[] packed = gzip.compress(data);
+		assertTrue(packed.length < data.length / 4);
+		assertTrue(gzip.getRatio() < 0.25);
+
+		// a pool that moved to deflate still reads what gzip wrote.
+		Compression deflate = new Compression(new DeflateCompressor(), 1024);
+		assertTrue(Arrays.equals(data, deflate.decompress(packed)));
+		assertTrue(Arrays.equals(data, deflate.decompress(deflate.compress(data))));
+		assertEquals(1L, gzip.getCompressedCount());
+		assertEquals(1L, gzip.getSkippedCount());
+	}
+
+	@Test
+	public void testTruncatedDeflateFails() throws Exception {
+		DeflateCompressor deflate = new DeflateCompressor();
+		byte[] data = json(200000);
+		byte[] packed = deflate.compress(data);
+		assertTrue(Arrays.equals(data, deflate.decompress(packed)));
+		try {
+			deflate.decompress(Arrays.copyOf(packed, packed.length / 2));
+			fail("half a stream must not decode");
+		} catch (IOException e) {
+		}
+	}
+
+	@Test
+	public void testTranscoderReadsSpymemcachedValues() throws Exception {
+		Map<String, String> value = new HashMap<String, String>();
+		value.put("payload", new String(json(50000), "UTF-8"));
+		CompressingTranscoder tc = new CompressingTranscoder(new Compression(new DeflateCompressor(), 1024));
+		CachedData encoded = tc.encode(value);
+		assertTrue((encoded.getFlags() & CompressingTranscoder.COMPRESSED_FLAG) != 0);
+		assertEquals(value, tc.decode(encoded));
+		// written by a node still on spymemcached's own gzip.
+		assertEquals(value, tc.decode(new SerializingTranscoder().encode(value)));
+	}
+
+	@Test
+	public void testDBCacheHeader() throws Exception {
+		// no database here, only the serialization is exercised.
+		DBCache db = new DBCache("jdbc:none", "", "", "java.lang.Object", "compression-test") {
+			@Override
+			protected void createTables() {
+			}
+		};
+		String value = new String(json(20000), "UTF-8");
+		byte[] plain = db.serialize(value);
+		assertEquals((byte) 0xAC, plain[0]);
+		db.setCompression(new Compression());
+		byte[] packed = db.serialize(value);
+		assertEquals((byte) 'T', packed[0]);
+		assertTrue(packed.length < plain.length / 4);
+		assertEquals(value, db.deserialize(packed));
+		assertEquals(value, db.deserialize(plain));
+	}
+}
@@ -0,0 +1,177 @@
+package com.base.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.base.cache.ConnectionPool;
+import com.base.cache.DBPoolConfig;
+
+public class ConnectionPoolTest {
+
+	// no in-memory database on the classpath, these stand in for the driver's objects.
+	private static class FakeDriver implements ConnectionPool.IConnectionSource {
+		final AtomicInteger opened = new AtomicInteger();
+		final AtomicInteger closed = new AtomicInteger();
+		final AtomicInteger prepared = new AtomicInteger();
+		final AtomicInteger batchesCleared = new AtomicInteger();
+		final AtomicBoolean valid = new AtomicBoolean(true);
+		volatile String failState;
+
+		public Connection open() {
+			opened.incrementAndGet();
+			return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+					new Class<?>[] { Connection.class }, new InvocationHandler() {
+				public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+					String name = method.getName();
+					if ("prepareStatement".equals(name)) {
+						prepared.incrementAndGet();
+						return statement();
+					}
+					if ("isValid".equals(name)) {
+						return valid.get();
+					}
+					if ("close".equals(name)) {
+						closed.incrementAndGet();
+					}
+					if ("getAutoCommit".equals(name)) {
+						return true;
+					}
+					return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+				}
+			});
+		}
+
+		PreparedStatement statement() {
+			return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+					new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+				public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+					if ("execute".equals(method.getName()) && failState != null) {
+						throw new SQLException("failed", failState);
+					}
+					if ("clearBatch".equals(method.getName())) {
+						batchesCleared.incrementAndGet();
+					}
+					return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+				}
+			});
+		}
+	}
+
+	@Test
+	public void testReusesConnectionsAndStatements() throws Exception {
+		FakeDriver driver = new FakeDriver();
+		DBPoolConfig config = new DBPoolConfig();
+		config.setMinSize(0);
+		ConnectionPool pool = new ConnectionPool(driver, config);
+		Connection c = pool.getConnection();
+		PreparedStatement ps = c.prepareStatement("select 1");
+		ps.close();
+		assertSame(ps, c.prepareStatement("select 1"));
+		c.close();
+		assertTrue(c.isClosed());
+
+		c = pool.getConnection();
+		c.prepareStatement("select 1");
+		c.close();
+		assertEquals(1, driver.opened.get());
+		assertEquals(1, driver.prepared.get());
+		assertEquals(2L, pool.getStatementCacheHits());
+		assertEquals(1L, pool.getStatementCacheMisses());
+		assertEquals(0, pool.getActiveCount());
+		pool.close();
+		assertEquals(1, driver.closed.get());
+	}
+
+	@Test
+	public void testClosedStatementDropsItsBatch() throws Exception {
+		FakeDriver driver = new FakeDriver();
+		DBPoolConfig config = new DBPoolConfig();
+		config.setMinSize(0);
+		ConnectionPool pool = new ConnectionPool(driver, config);
+		Connection c = pool.getConnection();
+		PreparedStatement ps = c.prepareStatement("insert");
+		ps.addBatch();
+		ps.close();
+		assertEquals(1, driver.batchesCleared.get());
+		c.close();
+		pool.close();
+	}
+
+	@Test
+	public void testAcquireTimesOutAtMaxSize() throws Exception {
+		DBPoolConfig config = new DBPoolConfig();
+		config.setMaxSize(1);
+		config.setAcquireTimeout(50);
+		ConnectionPool pool = new ConnectionPool(new FakeDriver(), config);
+		Connection held = pool.getConnection();
+		assertEquals(1.0, pool.getUtilization(), 0.001);
+		try {
+			pool.getConnection();
+			fail("the only connection is in use");
+		} catch (SQLException e) {
+		}
+		assertEquals(1L, pool.getTimeoutCount());
+		held.close();
+		held.close();
+		pool.getConnection().close();
+		assertEquals(0, pool.getActiveCount());
+		pool.close();
+	}
+
+	@Test
+	public void testDiscardsInvalidAndBrokenConnections() throws Exception {
+		FakeDriver driver = new FakeDriver();
+		DBPoolConfig config = new DBPoolConfig();
+		config.setMinSize(0);
+		config.setValidationInterval(0);
+		ConnectionPool pool = new ConnectionPool(driver, config);
+		pool.getConnection().close();
+		driver.valid.set(false);
+		pool.getConnection().close();
+		assertEquals(1L, pool.getValidationFailureCount());
+		assertEquals(2, driver.opened.get());
+
+		driver.valid.set(true);
+		driver.failState = "08006";
+		Connection c = pool.getConnection();
+		try {
+			c.prepareStatement("delete").execute();
+			fail();
+		} catch (SQLException e) {
+		}
+		c.close();
+		assertEquals(0, pool.getIdleCount());
+		assertEquals(2, driver.closed.get());
+		pool.close();
+	}
+
+	@Test
+	public void testEvictsIdleConnections() throws Exception {
+		FakeDriver driver = new FakeDriver();
+		DBPoolConfig config = new DBPoolConfig();
+		config.setMinSize(0);
+		config.setIdleTimeout(0);
+		config.setMaintenanceInterval(10);
+		ConnectionPool pool = new ConnectionPool(driver, config);
+		pool.getConnection().close();
+		for (int i = 0; i < 100 && pool.getOpenCount() > 0; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, pool.getOpenCount());
+		assertEquals(1L, pool.getEvictedCount());
+		pool.close();
+	}
+}
@@ -0,0 +1,71 @@
+package com.base.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Test;
+
+import com.base.cache.KeyEncoder;
+
+public class KeyEncoderTest {
+
+	private static String legacyEncode(String prefix, String key) {
+		return prefix + "#" + key.replace(" ", "").replace("&", "").replace("!", "").replace(":", "#");
+	}
+
+	@Test
+	public void testSameKeysAsBefore() {
+		String[] keys = { "user:42:profile", "plain", "a b&c!d:e", "", "::", "\u00fc\u00f1\u00ed:\u00e7\u00f8d\u00e9" };
+		for (String key : keys) {
+			assertEquals(legacyEncode("pool", key), KeyEncoder.encode("pool#", key));
+		}
+		assertEquals("pool#ab", KeyEncoder.encode("pool#", "a\r\n\tb"));
+	}
+
+	@Test
+	public void testLongKeysAreHashed() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 300; i++) {
+			sb.append('\u00e9');
+		}
+		String a = KeyEncoder.encode("pool#", sb.toString());
+		String b = KeyEncoder.encode("pool#", sb.toString() + "x");
+		assertTrue(a.getBytes("UTF-8").length <= KeyEncoder.MAX_KEY_BYTES);
+		assertTrue(a.startsWith("pool#\u00e9\u00e9"));
+		assertTrue(!a.equals(b));
+		assertEquals(a, KeyEncoder.encode("pool#", sb.toString()));
+	}
+
+	// allocated bytes per encoded key only, the old replace chain against the single pass encoder.
+	@Test
+	public void testEncodingAllocatesLess() {
+		if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+			return;
+		}
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long tid = Thread.currentThread().getId();
+		String[] keys = { "user:42:profile", "session_8f3a9c", "item list!page 3" };
+		int rounds = 100000;
+		int sink = 0;
+		for (int i = 0; i < rounds; i++) {
+			sink += legacyEncode("pool", keys[i % 3]).length() + KeyEncoder.encode("pool#", keys[i % 3]).length();
+		}
+
+		long start = mx.getThreadAllocatedBytes(tid);
+		for (int i = 0; i < rounds; i++) {
+			sink += legacyEncode("pool", keys[i % 3]).length();
+		}
+		long legacy = (mx.getThreadAllocatedBytes(tid) - start) / rounds;
+
+		start = mx.getThreadAllocatedBytes(tid);
+		for (int i = 0; i < rounds; i++) {
+			sink += KeyEncoder.encode("pool#", keys[i % 3]).length();
+		}
+		long encoder = (mx.getThreadAllocatedBytes(tid) - start) / rounds;
+
+		assertTrue(sink > 0);
+		assertTrue(encoder < legacy);
+	}
+}
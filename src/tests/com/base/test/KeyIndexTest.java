@@ -0,0 +1,100 @@
+package com.base.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.base.cache.BloomKeyIndex;
+import com.base.cache.BoundedKeyIndex;
+import com.base.cache.IKeyIndex;
+import com.base.cache.KeyPage;
+
+public class KeyIndexTest {
+
+	@Test
+	public void testBoundedEvictsOldestWrite() {
+		BoundedKeyIndex index = new BoundedKeyIndex(2);
+		index.add("a", 0);
+		index.add("b", 0);
+		index.add("a", 0);
+		index.add("c", 0);
+		List<String> keys = index.getKeys();
+		Collections.sort(keys);
+		assertEquals(Arrays.asList("a", "c"), keys);
+		assertFalse(index.mightContain("b"));
+		assertEquals(IKeyIndex.Accuracy.RECENT, index.getAccuracy());
+	}
+
+	@Test
+	public void testBoundedStaysBoundedAndScansAcrossStripes() {
+		BoundedKeyIndex index = new BoundedKeyIndex(2048);
+		for (int i = 0; i < 10000; i++) {
+			index.add("key" + i, 0);
+		}
+		assertTrue(index.size() <= 2048);
+		assertTrue(index.size() > 1900);
+		for (int i = 9900; i < 10000; i++) {
+			index.remove("key" + i);
+			assertFalse(index.mightContain("key" + i));
+		}
+
+		List<String> expected = index.getKeys();
+		Collections.sort(expected);
+		List<String> scanned = new ArrayList<String>();
+		KeyPage page = index.scanKeys(null, null, 7);
+		scanned.addAll(page.getKeys());
+		while (page.hasMore()) {
+			page = index.scanKeys(null, page.getNextToken(), 7);
+			scanned.addAll(page.getKeys());
+		}
+		assertEquals(expected, scanned);
+	}
+
+	@Test
+	public void testBoundedDropsExpired() throws Exception {
+		BoundedKeyIndex index = new BoundedKeyIndex(10);
+		index.add("short", 1);
+		index.add("long", 60);
+		Thread.sleep(2100);
+		assertEquals(Arrays.asList("long"), index.getKeys());
+		assertEquals(1L, index.size());
+	}
+
+	@Test
+	public void testBloomMembershipAndRotation() {
+		BloomKeyIndex index = new BloomKeyIndex(1000);
+		for (int i = 0; i < 1000; i++) {
+			index.add("key" + i, 0);
+		}
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(index.mightContain("key" + i));
+		}
+		int falsePositives = 0;
+		for (int i = 0; i < 10000; i++) {
+			if (index.mightContain("other" + i)) {
+				falsePositives++;
+			}
+		}
+		assertTrue("false positives " + falsePositives, falsePositives < 300);
+		assertTrue(index.getKeys().isEmpty());
+
+		// two more generations push the first batch out.
+		for (int i = 0; i < 2000; i++) {
+			index.add("next" + i, 0);
+		}
+		int remembered = 0;
+		for (int i = 0; i < 1000; i++) {
+			if (index.mightContain("key" + i)) {
+				remembered++;
+			}
+		}
+		assertTrue("remembered " + remembered, remembered < 100);
+	}
+}
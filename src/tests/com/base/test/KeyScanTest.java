@@ -0,0 +1,66 @@
+package com.base.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.base.cache.BoundedKeyIndex;
+import com.base.cache.ISupportKeyScan;
+import com.base.cache.KeyPage;
+
+public class KeyScanTest {
+
+	@Test
+	public void testPagesInKeyOrder() {
+		final List<String> stored = new ArrayList<String>();
+		for (int i = 0; i < 25; i++) {
+			stored.add("user:" + (char) ('y' - i));
+		}
+		stored.add("item:1");
+		ISupportKeyScan cache = new ISupportKeyScan() {
+			public KeyPage scanKeys(final String prefix, final String token, final int pageSize) {
+				return KeyPage.select(stored, prefix, token, pageSize);
+			}
+		};
+
+		KeyPage page = cache.scanKeys("user:", null, 10);
+		assertEquals(10, page.getKeys().size());
+		assertEquals("user:a", page.getKeys().get(0));
+		assertTrue(page.hasMore());
+		page = cache.scanKeys("user:", page.getNextToken(), 10);
+		assertEquals("user:k", page.getKeys().get(0));
+		page = cache.scanKeys("user:", page.getNextToken(), 10);
+		assertEquals(5, page.getKeys().size());
+		assertFalse(page.hasMore());
+
+		List<String> all = new ArrayList<String>();
+		for (String key : KeyPage.iterate(cache, null, 7)) {
+			all.add(key);
+		}
+		assertEquals(26, all.size());
+		assertEquals("item:1", all.get(0));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsEmptyPages() {
+		KeyPage.select(Arrays.asList("a", "b"), null, null, 0);
+	}
+
+	@Test
+	public void testKeyIndexScan() {
+		BoundedKeyIndex index = new BoundedKeyIndex(100);
+		index.add("b", 0);
+		index.add("a", 0);
+		index.add("c", 0);
+		KeyPage page = index.scanKeys(null, "a", 1);
+		assertEquals(Arrays.asList("b"), page.getKeys());
+		assertEquals("b", page.getNextToken());
+		assertEquals(Arrays.asList("c"), index.scanKeys(null, page.getNextToken(), 5).getKeys());
+	}
+}
@@ -0,0 +1,150 @@
+package com.base.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.spy.memcached.CachedData;
+
+import org.junit.Test;
+
+import com.base.cache.ChunkManifest;
+import com.base.cache.Memcache2;
+import com.base.cache.MemcacheClientConfig;
+
+public class MemcacheReadTest {
+
+	// the next slow gets never answer, every other get answers "v" right away.
+	private static class StubCache extends Memcache2 {
+		private final AtomicInteger gets = new AtomicInteger();
+		private final AtomicInteger slow = new AtomicInteger();
+
+		StubCache(final MemcacheClientConfig config) {
+			super(Arrays.asList("127.0.0.1:11211"), "read-test", false, config);
+		}
+
+		@Override
+		protected Future<Object> clientGet(final int idx, final String key) {
+			gets.incrementAndGet();
+			if (slow.getAndDecrement() > 0) {
+				return new CompletableFuture<Object>();
+			}
+			return CompletableFuture.<Object>completedFuture("v");
+		}
+
+		// fills the latency window so a hedge delay exists.
+		void warmUp() {
+			for (int i = 0; i < 128; i++) {
+				get("warm");
+			}
+			gets.set(0);
+		}
+	}
+
+	private static MemcacheClientConfig hedged(final int poolSize) {
+		MemcacheClientConfig config = new MemcacheClientConfig();
+		config.setPoolSize(poolSize);
+		config.setHedgedReads(true);
+		config.setMinHedgeDelay(1);
+		return config;
+	}
+
+	@Test
+	public void testHedgeWins() {
+		StubCache cache = new StubCache(hedged(2));
+		try {
+			cache.warmUp();
+			cache.slow.set(1);
+			assertEquals("v", cache.get("k"));
+			assertEquals(2, cache.gets.get());
+			assertEquals(1L, cache.getHedgedReadCount());
+			assertEquals(1L, cache.getHedgeWinCount());
+		} finally {
+			cache.disconnect();
+		}
+	}
+
+	@Test
+	public void testSingleClientDoesNotHedge() {
+		MemcacheClientConfig config = hedged(1);
+		config.setOperationTimeout(50);
+		config.setRequestBudget(50);
+		StubCache cache = new StubCache(config);
+		try {
+			cache.warmUp();
+			cache.slow.set(1);
+			assertNull(cache.get("k"));
+			assertEquals(1, cache.gets.get());
+			assertEquals(0L, cache.getHedgedReadCount());
+			// the timed out get is part of the latency window as well.
+			assertEquals(129L, cache.getReadLatency().getCount());
+		} finally {
+			cache.disconnect();
+		}
+	}
+
+	@Test
+	public void testChunksGetWhatIsLeftOfTheWait() {
+		MemcacheClientConfig config = new MemcacheClientConfig();
+		config.setOperationTimeout(1000);
+		config.setRequestBudget(1000);
+		final AtomicLong chunkWait = new AtomicLong(-1);
+		Memcache2 cache = new Memcache2(Arrays.asList("127.0.0.1:11211"), "read-test-chunks", false, config) {
+			@Override
+			protected Future<Object> clientGet(final int idx, final String key) {
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+				}
+				return CompletableFuture.<Object>completedFuture(new ChunkManifest(key, 1, 1, 1, 0, 0));
+			}
+
+			@Override
+			protected Future<Map<String, CachedData>> clientGetChunks(final Collection<String> chunkKeys) {
+				return new CompletableFuture<Map<String, CachedData>>() {
+					@Override
+					public Map<String, CachedData> get(final long timeout, final TimeUnit unit) {
+						chunkWait.set(unit.toMillis(timeout));
+						return new HashMap<String, CachedData>();
+					}
+				};
+			}
+		};
+		try {
+			assertNull(cache.get("k"));
+			assertTrue(chunkWait.get() >= 0);
+			assertTrue(chunkWait.get() <= 800);
+		} finally {
+			cache.disconnect();
+		}
+	}
+
+	@Test
+	public void testBudgetExhaustion() {
+		MemcacheClientConfig config = new MemcacheClientConfig();
+		config.setPoolSize(2);
+		config.setRequestBudget(100);
+		StubCache cache = new StubCache(config);
+		try {
+			cache.slow.set(Integer.MAX_VALUE);
+			long start = System.currentTimeMillis();
+			assertNull(cache.get("k"));
+			// the first attempt used the whole budget, so there is no retry.
+			assertTrue(System.currentTimeMillis() - start < config.getOperationTimeout());
+			assertEquals(1, cache.gets.get());
+			assertEquals(1L, cache.getBudgetExhaustedCount());
+		} finally {
+			cache.disconnect();
+		}
+	}
+}
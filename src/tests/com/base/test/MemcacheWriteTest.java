@@ -0,0 +1,111 @@
+package com.base.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.base.cache.Memcache2;
+import com.base.cache.MemcacheClientConfig;
+
+public class MemcacheWriteTest {
+
+	// answers every set with the given result, or never answers when result is null.
+	private static class StubFuture implements Future<Boolean> {
+		private final Boolean result;
+
+		StubFuture(final Boolean result) {
+			this.result = result;
+		}
+
+		public boolean cancel(final boolean mayInterrupt) {
+			return false;
+		}
+
+		public boolean isCancelled() {
+			return false;
+		}
+
+		public boolean isDone() {
+			return result != null;
+		}
+
+		public Boolean get() {
+			return result;
+		}
+
+		public Boolean get(final long timeout, final TimeUnit unit) throws TimeoutException {
+			if (result == null) {
+				throw new TimeoutException("stub never answers");
+			}
+			return result;
+		}
+	}
+
+	private static class StubCache extends Memcache2 {
+		private final AtomicInteger sets = new AtomicInteger();
+		private volatile Boolean result;
+
+		StubCache(final MemcacheClientConfig config) {
+			super(Arrays.asList("127.0.0.1:11211"), "write-test", false, config);
+		}
+
+		@Override
+		protected Future<Boolean> clientSet(final String key, final int ttl, final Object value) {
+			sets.incrementAndGet();
+			return new StubFuture(result);
+		}
+	}
+
+	@Test
+	public void testDefaultsToFireAndForget() {
+		assertEquals(MemcacheClientConfig.WriteMode.FIRE_AND_FORGET, new MemcacheClientConfig().getWriteMode());
+	}
+
+	@Test
+	public void testAcknowledgedFailuresAreCountedOnce() {
+		MemcacheClientConfig config = new MemcacheClientConfig();
+		config.setWriteMode(MemcacheClientConfig.WriteMode.ACKNOWLEDGED);
+		StubCache cache = new StubCache(config);
+		try {
+			cache.result = Boolean.TRUE;
+			cache.put("a", "1");
+			assertEquals(0L, cache.getFailedWriteCount());
+
+			cache.result = Boolean.FALSE;
+			cache.put("a", "1");
+			assertEquals(1L, cache.getFailedWriteCount());
+
+			// a set that timed out was sent already, it is not sent again.
+			cache.result = null;
+			cache.put("a", "1");
+			assertEquals(2L, cache.getFailedWriteCount());
+			assertEquals(3, cache.sets.get());
+		} finally {
+			cache.disconnect();
+		}
+	}
+
+	@Test
+	public void testFireAndForgetFailuresAreCounted() throws Exception {
+		StubCache cache = new StubCache(new MemcacheClientConfig());
+		try {
+			cache.result = Boolean.FALSE;
+			cache.put("a", "1");
+			cache.result = Boolean.TRUE;
+			cache.put("b", "2");
+			assertEquals(2, cache.sets.get());
+			for (int i = 0; i < 100 && cache.getFailedWriteCount() == 0; i++) {
+				Thread.sleep(10);
+			}
+			assertEquals(1L, cache.getFailedWriteCount());
+		} finally {
+			cache.disconnect();
+		}
+	}
+}
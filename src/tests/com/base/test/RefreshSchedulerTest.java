@@ -0,0 +1,196 @@
+package com.base.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.base.cache.CacheLayer;
+import com.base.cache.ICompletableRefresh;
+import com.base.cache.RefreshScheduler;
+
+public class RefreshSchedulerTest {
+
+	@Test
+	public void testDedupAndDropOldest() throws Exception {
+		RefreshScheduler scheduler = new RefreshScheduler("test-refresh", 1, 3, RefreshScheduler.OverflowPolicy.DROP_OLDEST);
+		final CountDownLatch block = new CountDownLatch(1);
+		final List<String> ran = new ArrayList<String>();
+		final CountDownLatch done = new CountDownLatch(3);
+		final List<String> abandoned = new ArrayList<String>();
+
+		// occupy the single worker so everything else queues up.
+		assertTrue(scheduler.submit("blocker", new Runnable() {
+			public void run() {
+				try {
+					block.await();
+				} catch (InterruptedException e) {
+				}
+			}
+		}));
+		while (scheduler.getQueueDepth() > 0) {
+			Thread.sleep(5);
+		}
+		assertFalse(scheduler.submit("blocker", record("blocker", ran, done)));
+
+		assertTrue(scheduler.submit("a", record("a", ran, done), record("a", abandoned, new CountDownLatch(1))));
+		assertTrue(scheduler.submit("b", record("b", ran, done)));
+		assertTrue(scheduler.submit("c", record("c", ran, done)));
+		assertFalse(scheduler.submit("c", record("c", ran, done)));
+		assertEquals(3, scheduler.getQueueDepth());
+		// full, "a" is the oldest and goes.
+		assertTrue(scheduler.submit("d", record("d", ran, done)));
+		assertEquals(1L, scheduler.getDroppedCount());
+		assertEquals(2L, scheduler.getDeduplicatedCount());
+		// the dropped refresh let go of what its submitter held for it.
+		assertEquals(Arrays.asList("a"), abandoned);
+
+		block.countDown();
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("b", "c", "d"), ran);
+		scheduler.shutdown();
+	}
+
+	@Test
+	public void testHottestRunsFirst() throws Exception {
+		RefreshScheduler scheduler = new RefreshScheduler("test-refresh-hot", 1, 10, RefreshScheduler.OverflowPolicy.DROP_OLDEST);
+		final CountDownLatch block = new CountDownLatch(1);
+		final List<String> ran = new ArrayList<String>();
+		final CountDownLatch done = new CountDownLatch(3);
+		scheduler.submit("blocker", new Runnable() {
+			public void run() {
+				try {
+					block.await();
+				} catch (InterruptedException e) {
+				}
+			}
+		});
+		while (scheduler.getQueueDepth() > 0) {
+			Thread.sleep(5);
+		}
+		scheduler.submit("a", record("a", ran, done));
+		scheduler.submit("b", record("b", ran, done));
+		scheduler.submit("c", record("c", ran, done));
+		scheduler.recordRead("c");
+		scheduler.recordRead("c");
+		scheduler.recordRead("b");
+		// a key that is not queued is ignored.
+		scheduler.recordRead("blocker");
+
+		block.countDown();
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("c", "b", "a"), ran);
+		scheduler.shutdown();
+	}
+
+	@Test
+	public void testShutdownDropsQueuedRefreshes() throws Exception {
+		RefreshScheduler scheduler = new RefreshScheduler("test-refresh-shutdown", 1, 10, RefreshScheduler.OverflowPolicy.DROP_OLDEST);
+		final CountDownLatch block = new CountDownLatch(1);
+		final List<String> ran = new ArrayList<String>();
+		final List<String> abandoned = new ArrayList<String>();
+		scheduler.submit("blocker", new Runnable() {
+			public void run() {
+				try {
+					block.await();
+				} catch (InterruptedException e) {
+				}
+			}
+		});
+		while (scheduler.getQueueDepth() > 0) {
+			Thread.sleep(5);
+		}
+		scheduler.submit("a", record("a", ran, new CountDownLatch(1)), record("a", abandoned, new CountDownLatch(1)));
+		scheduler.shutdown();
+		assertFalse(scheduler.submit("b", record("b", ran, new CountDownLatch(1)), record("b", abandoned, new CountDownLatch(1))));
+		block.countDown();
+		assertEquals(Arrays.asList("a", "b"), abandoned);
+		assertTrue(ran.isEmpty());
+	}
+
+	@Test
+	public void testReplacedDefaultSchedulerIsShutDown() {
+		RefreshScheduler old = CacheLayer.getDefaultRefreshScheduler();
+		RefreshScheduler replacement = new RefreshScheduler("test-refresh-default", 1, 10, RefreshScheduler.OverflowPolicy.DROP_OLDEST);
+		CacheLayer.setDefaultRefreshScheduler(replacement);
+		try {
+			assertFalse(old.submit("late", record("late", new ArrayList<String>(), new CountDownLatch(1))));
+		} finally {
+			CacheLayer.setDefaultRefreshScheduler(new RefreshScheduler("tcache-refresh", 5, 1000, RefreshScheduler.OverflowPolicy.DROP_OLDEST));
+		}
+	}
+
+	@Test
+	public void testCompletableRefreshRunsUntilItsStageCompletes() throws Exception {
+		RefreshScheduler scheduler = new RefreshScheduler("test-refresh-async", 1, 10, RefreshScheduler.OverflowPolicy.DROP_OLDEST);
+		final CompletableFuture<Void> load = new CompletableFuture<Void>();
+		final CountDownLatch started = new CountDownLatch(1);
+		ICompletableRefresh refresh = new ICompletableRefresh() {
+			public CompletionStage<Void> refreshAsync() {
+				started.countDown();
+				return load;
+			}
+
+			public void run() {
+				refreshAsync();
+			}
+		};
+		assertTrue(scheduler.submit("k", refresh));
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		// the worker is free, but the load is still in flight so the key is not refreshed twice.
+		assertFalse(scheduler.submit("k", refresh));
+		assertEquals(0L, scheduler.getCompletedCount());
+
+		load.completeExceptionally(new IllegalStateException("loader failed"));
+		assertEquals(1L, scheduler.getFailedCount());
+		assertEquals(0L, scheduler.getCompletedCount());
+		final CountDownLatch again = new CountDownLatch(1);
+		assertTrue(scheduler.submit("k", new Runnable() {
+			public void run() {
+				again.countDown();
+			}
+		}));
+		assertTrue(again.await(5, TimeUnit.SECONDS));
+		scheduler.shutdown();
+	}
+
+	@Test
+	public void testContinuationsRunOnTheWorkers() throws Exception {
+		RefreshScheduler scheduler = new RefreshScheduler("test-refresh-continue", 1, 10, RefreshScheduler.OverflowPolicy.DROP_OLDEST);
+		final CompletableFuture<Void> load = new CompletableFuture<Void>();
+		final CompletableFuture<String> storedOn = new CompletableFuture<String>();
+		load.thenRunAsync(new Runnable() {
+			public void run() {
+				storedOn.complete(Thread.currentThread().getName());
+			}
+		}, scheduler.getContinuationExecutor());
+		load.complete(null);
+		assertEquals("test-refresh-continue-0", storedOn.get(5, TimeUnit.SECONDS));
+
+		scheduler.shutdown();
+		final List<String> ran = new ArrayList<String>();
+		// nobody is left to run it, so the caller does.
+		scheduler.getContinuationExecutor().execute(record("late", ran, new CountDownLatch(1)));
+		assertEquals(Arrays.asList("late"), ran);
+	}
+
+	private Runnable record(final String name, final List<String> ran, final CountDownLatch done) {
+		return new Runnable() {
+			public void run() {
+				synchronized (ran) {
+					ran.add(name);
+				}
+				done.countDown();
+			}
+		};
+	}
+}
@@ -0,0 +1,119 @@
+package com.base.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.base.cache.DBCache;
+import com.base.cache.H2Dialect;
+import com.base.cache.MySQLDialect;
+import com.base.cache.PostgresDialect;
+import com.base.cache.SQLDialect;
+
+public class SQLDialectTest {
+
+	@Test
+	public void testForUrl() {
+		assertTrue(SQLDialect.forUrl("jdbc:postgresql://db/cache") instanceof PostgresDialect);
+		assertTrue(SQLDialect.forUrl("jdbc:mysql://db/cache") instanceof MySQLDialect);
+		assertTrue(SQLDialect.forUrl("jdbc:mariadb://db/cache") instanceof MySQLDialect);
+		assertTrue(SQLDialect.forUrl("jdbc:h2:mem:cache") instanceof H2Dialect);
+	}
+
+	@Test
+	public void testPrefixEnd() {
+		assertEquals("user;", SQLDialect.prefixEnd("user:"));
+		assertEquals("b", SQLDialect.prefixEnd("a" + Character.MAX_VALUE));
+		assertNull(SQLDialect.prefixEnd("" + Character.MAX_VALUE));
+		assertNull(SQLDialect.prefixEnd(""));
+		assertNull(SQLDialect.prefixEnd(null));
+		assertTrue(new PostgresDialect().scanKeys("t", true).contains("cache_key<?"));
+		assertFalse(new PostgresDialect().scanKeys("t", false).contains("cache_key<?"));
+	}
+
+	// records what would reach the database, no database is needed.
+	private static Connection fakeConnection(final List<String> sql, final LinkedList<Integer> updateCounts) {
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+				new Class<?>[] { Connection.class }, new InvocationHandler() {
+			public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				if ("prepareStatement".equals(method.getName())) {
+					sql.add((String) args[0]);
+					return Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+							new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+						public Object invoke(final Object proxy, final Method method, final Object[] args) {
+							if ("executeBatch".equals(method.getName())) {
+								return new int[0];
+							}
+							if ("executeUpdate".equals(method.getName())) {
+								return updateCounts.isEmpty() ? 0 : updateCounts.removeFirst();
+							}
+							return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+						}
+					});
+				}
+				return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+			}
+		});
+	}
+
+	@Test
+	public void testPutIsOneStatement() {
+		final List<String> sql = Collections.synchronizedList(new ArrayList<String>());
+		DBCache db = new DBCache("jdbc:mysql://db/cache", "", "", "java.lang.Object", "dialect-test") {
+			@Override
+			protected Connection openConnection() {
+				return fakeConnection(sql, new LinkedList<Integer>());
+			}
+		};
+		sql.clear();
+		db.put("a", "1");
+		assertEquals(1, sql.size());
+		assertEquals(new MySQLDialect().upsert(db.getTableStore()), sql.get(0));
+
+		Map<String,Object> values = new HashMap<String,Object>();
+		values.put("b", "2");
+		values.put("c", "3");
+		db.putMulti(values, 0);
+		// the upsert is cached on the pooled connection, the batch needs no new statement.
+		assertEquals(1, sql.size());
+		db.disconnect();
+	}
+
+	@Test
+	public void testPurgeStopsAtPartialBatch() throws Exception {
+		final List<String> sql = Collections.synchronizedList(new ArrayList<String>());
+		final LinkedList<Integer> deleted = new LinkedList<Integer>(Arrays.asList(500, 500, 120, 500));
+		DBCache db = new DBCache("jdbc:h2:mem:cache", "", "", "java.lang.Object", "purge-test") {
+			@Override
+			protected Connection openConnection() {
+				return fakeConnection(sql, deleted);
+			}
+
+			@Override
+			protected long getPurgeBatchDelay() {
+				return 0;
+			}
+		};
+		assertEquals(1120L, db.purgeExpired());
+		assertEquals(1120L, db.getPurgedRowCount());
+		assertEquals(1, deleted.size());
+		assertTrue(sql.contains(new H2Dialect().purgeExpired(db.getTableStore())));
+		db.disconnect();
+	}
+}
@@ -0,0 +1,155 @@
+package com.base.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.base.cache.DBCache;
+
+public class WriteBehindTest {
+	private final AtomicInteger queries = new AtomicInteger();
+	private final AtomicInteger batched = new AtomicInteger();
+	private final AtomicInteger commits = new AtomicInteger();
+	private volatile boolean down;
+
+	// counts what would reach the database, no database is needed.
+	private Connection fakeConnection() {
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+				new Class<?>[] { Connection.class }, new InvocationHandler() {
+			public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				if ("commit".equals(method.getName())) {
+					commits.incrementAndGet();
+				}
+				if ("getAutoCommit".equals(method.getName())) {
+					return Boolean.TRUE;
+				}
+				if ("prepareStatement".equals(method.getName())) {
+					return Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+							new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+						public Object invoke(final Object proxy, final Method method, final Object[] args) throws SQLException {
+							if ("executeQuery".equals(method.getName())) {
+								queries.incrementAndGet();
+							}
+							if ("addBatch".equals(method.getName())) {
+								batched.incrementAndGet();
+							}
+							if ("executeBatch".equals(method.getName())) {
+								if (down) {
+									throw new SQLException("database down");
+								}
+								return new int[0];
+							}
+							return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+						}
+					});
+				}
+				return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+			}
+		});
+	}
+
+	@Test
+	public void testCoalescesAndFlushesInOneTransaction() {
+		DBCache db = new DBCache("jdbc:h2:mem:cache", "", "", "java.lang.Object", "write-behind-test") {
+			@Override
+			protected Connection openConnection() {
+				return fakeConnection();
+			}
+
+			@Override
+			protected long getWriteBehindDelay() {
+				return 60000;
+			}
+		};
+		db.setWriteBehind(true);
+		db.put("a", "1");
+		db.put("a", "2");
+		db.put("b", "3", 60);
+		db.remove("c");
+		assertEquals(3, db.getPendingWriteCount());
+		assertEquals(1L, db.getCoalescedWriteCount());
+
+		assertEquals("2", db.get("a"));
+		assertEquals(null, db.get("c"));
+		assertFalse(db.keyExists("c"));
+		assertEquals(2, db.getMulti(Arrays.asList("a", "b", "c")).size());
+		assertEquals(0, queries.get());
+
+		assertEquals(3, db.flush());
+		assertEquals(0, db.getPendingWriteCount());
+		assertEquals(3, batched.get());
+		assertEquals(1, commits.get());
+		assertEquals(3L, db.getAverageBatchSize());
+
+		db.put("d", "4");
+		db.disconnect();
+		assertEquals(2, commits.get());
+		assertEquals(2L, db.getFlushCount());
+
+		try {
+			db.put("e", "5");
+			fail("a write after disconnect would never be flushed");
+		} catch (IllegalStateException expected) {
+		}
+		assertEquals(0, db.getPendingWriteCount());
+	}
+
+	@Test
+	public void testFullQueueRejectsWritesWhileFlushFails() {
+		DBCache db = new DBCache("jdbc:h2:mem:cache", "", "", "java.lang.Object", "write-behind-full-test") {
+			@Override
+			protected Connection openConnection() {
+				return fakeConnection();
+			}
+
+			@Override
+			protected long getWriteBehindDelay() {
+				return 60000;
+			}
+
+			@Override
+			protected int getWriteBehindMaxPending() {
+				return 3;
+			}
+		};
+		db.setWriteBehind(true);
+		down = true;
+		db.put("a", "1");
+		db.put("b", "2");
+		db.put("c", "3");
+		assertEquals(3, db.getPendingWriteCount());
+
+		for (int i = 0; i < 10; i++) {
+			try {
+				db.put("new" + i, "x");
+				fail("the queue is full and the database is down");
+			} catch (RuntimeException expected) {
+			}
+		}
+		assertEquals(3, db.getPendingWriteCount());
+		assertEquals(10L, db.getRejectedWriteCount());
+		assertTrue(db.getFailedFlushCount() >= 10);
+
+		// replacing a queued key does not grow the queue, so it is still accepted.
+		db.put("a", "4");
+		assertEquals("4", db.get("a"));
+
+		down = false;
+		db.put("d", "5");
+		assertEquals(1, db.getPendingWriteCount());
+		assertEquals(3L, db.getFlushedWriteCount());
+		db.disconnect();
+	}
+}